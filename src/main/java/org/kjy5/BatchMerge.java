@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+
+/**
+ * Merges many file triples in one process.
+ *
+ * <p>Each merge runs on its own virtual thread, but at most one merge per worker runs at a time, so
+ * merges do not compete for processors. Merges start from the largest inputs, so that a large file
+ * started last does not leave the other workers idle at the end of the batch.
+ *
+ * @author Kenneth Yang
+ */
+public class BatchMerge {
+  // region Constants.
+  private static final String BASE_FILE_NAME = "file_base.java";
+  private static final String LEFT_FILE_NAME = "file_left.java";
+  private static final String RIGHT_FILE_NAME = "file_right.java";
+  private static final String MERGED_FILE_NAME = "file_merged.java";
+
+  /** Separator of the paths on a manifest line (tabs, so that paths may contain spaces). */
+  private static final String MANIFEST_SEPARATOR = "\t";
+
+  private static final String MANIFEST_COMMENT_PREFIX = "#";
+  private static final String REPORT_FORMAT = "%-10s%8d ms  %s%s%n";
+
+  // endregion
+
+  // region Fields.
+  private final MergePipeline pipeline;
+  private final Semaphore workers;
+
+  // endregion
+
+  /**
+   * A merge of a file triple.
+   *
+   * @param base the path of the base version
+   * @param left the path of the left version
+   * @param right the path of the right version
+   * @param output the path to write the merged file to
+   */
+  public record Job(Path base, Path left, Path right, Path output) {}
+
+  /** The outcome of a merge. */
+  public enum Status {
+    /** Merged without conflicts. */
+    CLEAN,
+    /** Merged with conflicts. */
+    CONFLICTS,
+    /** Not merged (the output is not written). */
+    FAILED
+  }
+
+  /**
+   * The result of a merge.
+   *
+   * @param job the merge
+   * @param status the outcome of the merge
+   * @param elapsed the time taken by the merge (including reading and writing files)
+   * @param error the reason the merge failed, or null
+   */
+  public record Outcome(Job job, Status status, Duration elapsed, String error) {}
+
+  /**
+   * Create a batch merger.
+   *
+   * <p>Each merge runs on one thread only if the pipeline is sequential (see {@link
+   * MergePipeline#MergePipeline(org.kjy5.cache.ParseCache, org.kjy5.cache.MatchCache, boolean)}).
+   * With a concurrent pipeline, every running merge also forks its own parsing and matching
+   * threads and may resolve on the common fork-join pool, so more threads than workers are busy.
+   *
+   * @param pipeline the merge pipeline shared by all merges
+   * @param workerCount the number of merges to run at a time
+   */
+  public BatchMerge(MergePipeline pipeline, int workerCount) {
+    this.pipeline = pipeline;
+    this.workers = new Semaphore(workerCount);
+  }
+
+  // region Job lists.
+
+  /**
+   * Read the merges listed in a manifest.
+   *
+   * <p>Each line lists the base, left, right, and output paths, separated by tabs. Relative paths
+   * are relative to the manifest's directory. Blank lines and lines starting with "#" are ignored.
+   *
+   * @param manifest the path of the manifest
+   * @return the merges
+   * @throws IOException if the manifest cannot be read
+   */
+  public static List<Job> fromManifest(Path manifest) throws IOException {
+    final var directory = manifest.toAbsolutePath().getParent();
+    final var lines = Files.readAllLines(manifest);
+
+    var jobs = new ArrayList<Job>();
+    for (var i = 0; i < lines.size(); i++) {
+      final var line = lines.get(i).strip();
+      if (line.isEmpty() || line.startsWith(MANIFEST_COMMENT_PREFIX)) continue;
+
+      final var paths = line.split(MANIFEST_SEPARATOR);
+      if (paths.length != 4) {
+        throw new IllegalArgumentException(
+            "Expected 4 paths on line %d of %s, but got %d"
+                .formatted(i + 1, manifest, paths.length));
+      }
+      jobs.add(
+          new Job(
+              directory.resolve(paths[0]),
+              directory.resolve(paths[1]),
+              directory.resolve(paths[2]),
+              directory.resolve(paths[3])));
+    }
+    return jobs;
+  }
+
+  /**
+   * List the merges in a directory of examples.
+   *
+   * <p>Every subdirectory with base, left, and right files (like those under "resources/") is a
+   * merge, written to a merged file next to them.
+   *
+   * @param directory the directory of examples
+   * @return the merges, in subdirectory name order
+   * @throws IOException if the directory cannot be listed
+   */
+  public static List<Job> fromDirectory(Path directory) throws IOException {
+    var jobs = new ArrayList<Job>();
+    try (var subdirectories = Files.list(directory)) {
+      for (var subdirectory : (Iterable<Path>) subdirectories.sorted()::iterator) {
+        final var job =
+            new Job(
+                subdirectory.resolve(BASE_FILE_NAME),
+                subdirectory.resolve(LEFT_FILE_NAME),
+                subdirectory.resolve(RIGHT_FILE_NAME),
+                subdirectory.resolve(MERGED_FILE_NAME));
+        if (Files.isRegularFile(job.base())
+            && Files.isRegularFile(job.left())
+            && Files.isRegularFile(job.right())) {
+          jobs.add(job);
+        }
+      }
+    }
+    return jobs;
+  }
+
+  // endregion
+
+  /**
+   * Run merges, largest inputs first, reporting each outcome as it completes.
+   *
+   * @param jobs the merges
+   * @param report the stream to report outcomes to
+   * @return the outcomes, in the order the merges were started
+   * @throws InterruptedException if interrupted while waiting for merges
+   */
+  public List<Outcome> run(List<Job> jobs, PrintStream report) throws InterruptedException {
+    // Order by total input size, largest first.
+    var inputSizes = new HashMap<Job, Long>();
+    for (var job : jobs) inputSizes.put(job, inputSize(job));
+    var orderedJobs = new ArrayList<>(jobs);
+    orderedJobs.sort(Comparator.comparing(inputSizes::get, Comparator.reverseOrder()));
+
+    // Start each merge once a worker is free, so merges start strictly in size order.
+    final var start = System.nanoTime();
+    final var startMergeCount = pipeline.mergeCount();
+    final var startTrivialMergeCount = pipeline.trivialMergeCount();
+    var subtasks = new ArrayList<StructuredTaskScope.Subtask<Outcome>>();
+    try (var scope = new StructuredTaskScope<Outcome>()) {
+      for (var job : orderedJobs) {
+        workers.acquire();
+        subtasks.add(
+            scope.fork(
+                () -> {
+                  try {
+                    final var outcome = merge(job);
+                    report(outcome, report);
+                    return outcome;
+                  } finally {
+                    workers.release();
+                  }
+                }));
+      }
+      scope.join();
+    }
+
+    // Summarize.
+    var outcomes = new ArrayList<Outcome>();
+    var statusCounts = new int[Status.values().length];
+    for (var i = 0; i < subtasks.size(); i++) {
+      // A merge whose subtask did not succeed (say, the report stream failed) counts as failed.
+      final var subtask = subtasks.get(i);
+      final var job = orderedJobs.get(i);
+      final var outcome =
+          switch (subtask.state()) {
+            case SUCCESS -> subtask.get();
+            case FAILED ->
+                new Outcome(job, Status.FAILED, Duration.ZERO, subtask.exception().toString());
+            case UNAVAILABLE -> new Outcome(job, Status.FAILED, Duration.ZERO, "Not completed");
+          };
+      if (subtask.state() != StructuredTaskScope.Subtask.State.SUCCESS) report(outcome, report);
+      outcomes.add(outcome);
+      statusCounts[outcome.status().ordinal()]++;
+    }
+    report.format(
+        "%d clean, %d with conflicts, %d failed in %d ms, trivial hit rate %s.%n",
+        statusCounts[Status.CLEAN.ordinal()],
+        statusCounts[Status.CONFLICTS.ordinal()],
+        statusCounts[Status.FAILED.ordinal()],
+        Duration.ofNanos(System.nanoTime() - start).toMillis(),
+        TrivialMerge.hitRate(
+            pipeline.trivialMergeCount() - startTrivialMergeCount,
+            pipeline.mergeCount() - startMergeCount));
+    return outcomes;
+  }
+
+  // region Merge helpers.
+
+  /**
+   * Run one merge.
+   *
+   * @param job the merge
+   * @return the outcome of the merge
+   */
+  private Outcome merge(Job job) {
+    final var start = System.nanoTime();
+    Status status;
+    String error = null;
+    try {
+      final var result =
+          pipeline.merge(
+              readSource(job.base()), readSource(job.left()), readSource(job.right()), false);
+      result.writeTo(job.output());
+      status = result.conflicts() ? Status.CONFLICTS : Status.CLEAN;
+    } catch (Throwable e) {
+      // Errors too (say, a stack overflow on deeply nested code) only fail this merge.
+      status = Status.FAILED;
+      error = e.toString();
+    }
+    return new Outcome(job, status, Duration.ofNanos(System.nanoTime() - start), error);
+  }
+
+  /**
+   * Report the outcome of a merge.
+   *
+   * @param outcome the outcome
+   * @param report the stream to report to
+   */
+  private static void report(Outcome outcome, PrintStream report) {
+    report.format(
+        REPORT_FORMAT,
+        outcome.status(),
+        outcome.elapsed().toMillis(),
+        outcome.job().output(),
+        outcome.error() == null ? "" : " (" + outcome.error() + ")");
+  }
+
+  /**
+   * Read a source file into memory.
+   *
+   * @param path the path of the source file (also its name)
+   * @return the source file
+   * @throws IOException if the file cannot be read
+   */
+  private static MergePipeline.Source readSource(Path path) throws IOException {
+    return new MergePipeline.Source(path.toString(), Files.readAllBytes(path));
+  }
+
+  /**
+   * Compute the total size of a merge's inputs.
+   *
+   * @param job the merge
+   * @return the total size in bytes (unreadable inputs count as empty, and fail when merged)
+   */
+  private static long inputSize(Job job) {
+    var size = 0L;
+    for (var path : new Path[] {job.base(), job.left(), job.right()}) {
+      try {
+        size += Files.size(path);
+      } catch (IOException e) {
+        // Reported when the merge reads the file.
+      }
+    }
+    return size;
+  }
+  // endregion
+}
@@ -3,18 +3,11 @@
  */
 package org.kjy5;
 
-import com.github.gumtreediff.client.Run;
-import com.github.gumtreediff.gen.javaparser.JavaParserGenerator;
-import com.github.gumtreediff.matchers.Matchers;
-import com.github.gumtreediff.tree.Tree;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import org.kjy5.spork.ChangeSet;
-import org.kjy5.spork.ChildListVirtualNodes;
-import org.kjy5.spork.ClassRepresentatives;
-import org.kjy5.spork.ContentTuple;
-import org.kjy5.spork.Merger;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Main class for the merge driver.
@@ -32,29 +25,136 @@ public class Main {
   private static final String MERGED_FILE_PATH = "/file_merged";
   private static final String JAVA_FILE_EXTENSION = ".java";
 
-  private static final String MERGE_TABLE_FORMAT = "%-10s%-10s%-15s%n";
+  private static final String DAEMON_OPTION = "--daemon";
+  private static final String EXAMPLES_OPTION = "--examples";
+  private static final String BATCH_OPTION = "--batch";
+
+  /** Exit code for a clean merge. */
+  static final int EXIT_CLEAN = 0;
+
+  /** Exit code for a merge with conflicts. */
+  static final int EXIT_CONFLICTS = 1;
+
+  /** Exit code for a merge that could not be performed (git also treats this as a conflict). */
+  static final int EXIT_FAILURE = 2;
 
   // endregion
 
   /**
    * Entry point of the program.
    *
-   * <p>Runs the full Spork algorithm.
+   * <p>With one argument, merges an example under the "resources/" directory and prints the merge
+   * steps, or with "--daemon", serves merges for the current repository (see {@link MergeDaemon}).
+   * With "--examples" followed by folder names, merges each example in one process (used as the
+   * training run of the class data sharing archive). With "--batch" followed by a manifest or a
+   * directory of examples, merges every file triple in one process (see {@link BatchMerge}). With
+   * four arguments, runs as a git merge driver, in the daemon if one is serving the repository.
    *
-   * @param args command line arguments (test folder name relative to the "resources/" directory)
+   * @param args command line arguments (test folder name relative to the "resources/" directory,
+   *     "--daemon", "--examples" and test folder names, "--batch" and a manifest or directory, or
+   *     git's {@code %O %A %B %P} merge driver arguments)
    */
   public static void main(String[] args) {
-    // region File path specifications.
+    if (args.length == 2 && args[0].equals(BATCH_OPTION)) {
+      System.exit(runBatch(Path.of(args[1])));
+    }
+    if (args.length > 0 && args[0].equals(EXAMPLES_OPTION)) {
+      for (var i = 1; i < args.length; i++) runExample(args[i]);
+      return;
+    }
+
+    switch (args.length) {
+      case 1 -> {
+        if (args[0].equals(DAEMON_OPTION)) {
+          runDaemon();
+        } else {
+          runExample(args[0]);
+        }
+      }
+      case 4 ->
+          System.exit(
+              MergeClient.runDriver(args[0], args[1], args[2], args[3], System.err)
+                  .orElseGet(
+                      () ->
+                          runDriver(
+                              MergePipeline.inGitDirectory(),
+                              args[0],
+                              args[1],
+                              args[2],
+                              args[3],
+                              System.err)));
+      default ->
+          throw new IllegalArgumentException("Expected 1 or 4 arguments, but got " + args.length);
+    }
+  }
+
+  /**
+   * Merge a batch of file triples.
+   *
+   * @param jobs the path of a manifest, or of a directory of examples
+   * @return the exit code (0 if every merge is clean, 1 if any has conflicts, 2 if any failed)
+   */
+  private static int runBatch(Path jobs) {
+    final List<BatchMerge.Outcome> outcomes;
+    try {
+      outcomes =
+          new BatchMerge(
+                  MergePipeline.inGitDirectory(false), Runtime.getRuntime().availableProcessors())
+              .run(
+                  Files.isDirectory(jobs)
+                      ? BatchMerge.fromDirectory(jobs)
+                      : BatchMerge.fromManifest(jobs),
+                  System.out);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to list merges: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while merging.", e);
+    }
 
-    // Throw error if the number of arguments is not 1.
-    if (args.length != 1) {
-      throw new IllegalArgumentException("Expected 1 argument, but got " + args.length);
+    var exitCode = EXIT_CLEAN;
+    for (var outcome : outcomes) {
+      exitCode =
+          Math.max(
+              exitCode,
+              switch (outcome.status()) {
+                case CLEAN -> EXIT_CLEAN;
+                case CONFLICTS -> EXIT_CONFLICTS;
+                case FAILED -> EXIT_FAILURE;
+              });
     }
+    return exitCode;
+  }
 
-    // Get the folder name from the command line arguments.
-    final var folder = args[0];
+  /** Serve merges for the current repository until idle. */
+  private static void runDaemon() {
+    final var socketPath = MergeDaemon.createSocketPath();
+    if (socketPath == null) {
+      throw new IllegalStateException(
+          "Not in a Git repository, or no private directory for the daemon socket.");
+    }
 
-    // Source files.
+    final var pipeline = MergePipeline.inGitDirectory(false);
+    try {
+      new MergeDaemon(socketPath, pipeline, MergeDaemon.DEFAULT_IDLE_TIMEOUT).serve();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to serve merges: " + e);
+    }
+    System.out.println(
+        "Served "
+            + pipeline.mergeCount()
+            + " merges, trivial hit rate "
+            + pipeline.trivialHitRate()
+            + ".");
+  }
+
+  /**
+   * Merge an example and write the result next to it.
+   *
+   * @param folder the example folder name relative to the "resources/" directory
+   */
+  private static void runExample(String folder) {
+    // region File path specifications.
     final var fileBasePath = RESOURCES_FOLDER_PATH + folder + BASE_FILE_PATH + JAVA_FILE_EXTENSION;
     final var fileLeftPath = RESOURCES_FOLDER_PATH + folder + LEFT_FILE_PATH + JAVA_FILE_EXTENSION;
     final var fileRightPath =
@@ -63,125 +163,77 @@ public class Main {
         RESOURCES_FOLDER_PATH + folder + MERGED_FILE_PATH + JAVA_FILE_EXTENSION;
     // endregion
 
-    // region Create matching between branches.
-    final var javaParserGenerator = new JavaParserGenerator();
-
-    // Create parsings.
-    final Tree baseTree, leftTree, rightTree;
+    // region Merge.
+    final MergePipeline.Result result;
     try {
-      baseTree = javaParserGenerator.generateFrom().file(fileBasePath).getRoot();
-      leftTree = javaParserGenerator.generateFrom().file(fileLeftPath).getRoot();
-      rightTree = javaParserGenerator.generateFrom().file(fileRightPath).getRoot();
+      result =
+          MergePipeline.inGitDirectory()
+              .merge(
+                  readSource(fileBasePath, fileBasePath),
+                  readSource(fileLeftPath, fileLeftPath),
+                  readSource(fileRightPath, fileRightPath),
+                  true);
     } catch (IOException e) {
-      throw new RuntimeException("Unable to parse source code: " + e);
+      throw new RuntimeException("Unable to read source code: " + e);
     }
-
-    // Annotate trees with their source files.
-    var nodeToSourceFile = new HashMap<Tree, String>();
-    baseTree.preOrder().forEach(node -> nodeToSourceFile.put(node, fileBasePath));
-    leftTree.preOrder().forEach(node -> nodeToSourceFile.put(node, fileLeftPath));
-    rightTree.preOrder().forEach(node -> nodeToSourceFile.put(node, fileRightPath));
-
-    // TODO: Consider mapping from left/right to base to better follow usage direction later.
-    // Match the trees.
-    Run.initMatchers();
-    final var matcher = Matchers.getInstance().getMatcher();
-    final var baseToLeft = matcher.match(baseTree, leftTree);
-    final var baseToRight = matcher.match(baseTree, rightTree);
-    final var leftToRight = matcher.match(leftTree, rightTree);
     // endregion
 
-    // region Create class representative mappings.
-    final var nodeToClassRepresentatives =
-        ClassRepresentatives.from(
-            baseTree, leftTree, rightTree, baseToLeft, baseToRight, leftToRight);
-    // endregion
-
-    // region Create change sets (PCS and content tuples).
-
-    // Virtual node mappings.
-    var astRootToVirtualRoot = new LinkedHashMap<Tree, Tree>();
-    var nodeToChildListVirtualNodes = new LinkedHashMap<Tree, ChildListVirtualNodes>();
-
-    // Content tuple source file mapping.
-    var contentTupleToSourceFile = new HashMap<ContentTuple, String>();
-
-    final var baseChangeSet =
-        ChangeSet.from(
-            baseTree,
-            nodeToClassRepresentatives,
-            astRootToVirtualRoot,
-            nodeToSourceFile,
-            contentTupleToSourceFile,
-            nodeToChildListVirtualNodes);
-    final var leftChangeSet =
-        ChangeSet.from(
-            leftTree,
-            nodeToClassRepresentatives,
-            astRootToVirtualRoot,
-            nodeToSourceFile,
-            contentTupleToSourceFile,
-            nodeToChildListVirtualNodes);
-    final var rightChangeSet =
-        ChangeSet.from(
-            rightTree,
-            nodeToClassRepresentatives,
-            astRootToVirtualRoot,
-            nodeToSourceFile,
-            contentTupleToSourceFile,
-            nodeToChildListVirtualNodes);
-    System.out.format(MERGE_TABLE_FORMAT, "State", "# PCSs", "# ContentTuples");
-    System.out.format(
-        MERGE_TABLE_FORMAT,
-        "Base",
-        baseChangeSet.pcsSet().size(),
-        baseChangeSet.contentTupleSet().size());
-    System.out.format(
-        MERGE_TABLE_FORMAT,
-        "Left",
-        leftChangeSet.pcsSet().size(),
-        leftChangeSet.contentTupleSet().size());
-    System.out.format(
-        MERGE_TABLE_FORMAT,
-        "Right",
-        rightChangeSet.pcsSet().size(),
-        rightChangeSet.contentTupleSet().size());
-    System.out.format(
-        MERGE_TABLE_FORMAT,
-        "Total",
-        baseChangeSet.pcsSet().size()
-            + leftChangeSet.pcsSet().size()
-            + rightChangeSet.pcsSet().size(),
-        baseChangeSet.contentTupleSet().size()
-            + leftChangeSet.contentTupleSet().size()
-            + rightChangeSet.contentTupleSet().size());
-    // endregion
-
-    // region Merge.
-    final var mergedChangeSet = Merger.merge(baseChangeSet, leftChangeSet, rightChangeSet);
-    System.out.format(
-        MERGE_TABLE_FORMAT,
-        "Merged",
-        mergedChangeSet.pcsSet().size(),
-        mergedChangeSet.contentTupleSet().size());
+    // region Write merged file.
+    try {
+      result.writeTo(Path.of(fileMergedPath));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
     // endregion
+  }
 
-    // region Rebuild AST from merged change set.
-    final var mergedTree = mergedChangeSet.toGumTreeTree();
-    System.out.println();
-    System.out.println("Merged tree:");
-    mergedTree
-        .preOrder()
-        .forEach(node -> System.out.println(nodeToSourceFile.get(node) + ": " + node));
-    // endregion
+  /**
+   * Run as a git merge driver.
+   *
+   * <p>The three versions are read into memory once, the result is written over the current
+   * version in a single write, and nothing is printed unless the merge fails.
+   *
+   * @param pipeline the merge pipeline
+   * @param ancestorPath the path of the temporary file with the ancestor version ({@code %O})
+   * @param currentPath the path of the temporary file with the current version, overwritten with
+   *     the result ({@code %A})
+   * @param otherPath the path of the temporary file with the other branch's version ({@code %B})
+   * @param pathName the path of the file being merged ({@code %P}), used to label conflicts
+   * @param errors the stream to report a failed merge to
+   * @return the exit code (0 for a clean merge, 1 for conflicts, 2 if the merge failed)
+   */
+  static int runDriver(
+      MergePipeline pipeline,
+      String ancestorPath,
+      String currentPath,
+      String otherPath,
+      String pathName,
+      PrintStream errors) {
+    try {
+      final var result =
+          pipeline.merge(
+              readSource(pathName + " (base)", ancestorPath),
+              readSource(pathName + " (ours)", currentPath),
+              readSource(pathName + " (theirs)", otherPath),
+              false);
+      result.writeTo(Path.of(currentPath));
+      return result.conflicts() ? EXIT_CONFLICTS : EXIT_CLEAN;
+    } catch (IOException | RuntimeException e) {
+      // Leave the current version in place for git to report as conflicted.
+      errors.println("Unable to merge " + pathName + ": " + e);
+      return EXIT_FAILURE;
+    }
+  }
 
-    // region Write merged tree to file.
-    Printer.print(
-        mergedTree,
-        mergedChangeSet.contentTupleSet(),
-        fileMergedPath,
-        nodeToSourceFile,
-        contentTupleToSourceFile);
-    // endregion
+  /**
+   * Read a source file into memory.
+   *
+   * @param name the name of the source file
+   * @param path the path of the source file
+   * @return the source file
+   * @throws IOException if the file cannot be read
+   */
+  private static MergePipeline.Source readSource(String name, String path) throws IOException {
+    return new MergePipeline.Source(name, Files.readAllBytes(Path.of(path)));
   }
 }
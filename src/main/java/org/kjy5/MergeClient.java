@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.OptionalInt;
+
+/**
+ * A thin client of the {@link MergeDaemon}.
+ *
+ * <p>The client only sends the merge driver's arguments, so it does not load the parser, matchers,
+ * or merge algorithm. If no daemon is serving the repository, the caller merges in-process.
+ *
+ * @author Kenneth Yang
+ */
+public class MergeClient {
+  /**
+   * Run the merge driver in the daemon serving the current Git repository.
+   *
+   * @param ancestorPath the path of the temporary file with the ancestor version ({@code %O})
+   * @param currentPath the path of the temporary file with the current version, overwritten with
+   *     the result ({@code %A})
+   * @param otherPath the path of the temporary file with the other branch's version ({@code %B})
+   * @param pathName the path of the file being merged ({@code %P})
+   * @param errors the stream to copy the daemon's error output to
+   * @return the driver exit code, or empty if no daemon accepted the request (so the files are
+   *     untouched and the caller can merge in-process)
+   */
+  public static OptionalInt runDriver(
+      String ancestorPath,
+      String currentPath,
+      String otherPath,
+      String pathName,
+      PrintStream errors) {
+    final var socketPath = MergeDaemon.socketPath();
+    if (socketPath == null || !MergeDaemon.isOwnedByCurrentUser(socketPath)) {
+      return OptionalInt.empty();
+    }
+
+    try (var daemon = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      daemon.connect(UnixDomainSocketAddress.of(socketPath));
+      final var input = new DataInputStream(Channels.newInputStream(daemon));
+      final var output = new DataOutputStream(Channels.newOutputStream(daemon));
+
+      // Send the request with absolute paths (the daemon may run in another directory).
+      output.writeInt(MergeDaemon.PROTOCOL_VERSION);
+      output.writeUTF(Path.of(ancestorPath).toAbsolutePath().toString());
+      output.writeUTF(Path.of(currentPath).toAbsolutePath().toString());
+      output.writeUTF(Path.of(otherPath).toAbsolutePath().toString());
+      output.writeUTF(pathName);
+      output.flush();
+      if (input.read() != MergeDaemon.ACKNOWLEDGEMENT) return OptionalInt.empty();
+
+      // The daemon owns the files from here on, so failures can no longer fall back.
+      try {
+        final var exitCode = input.readInt();
+        errors.write(input.readNBytes(input.readInt()));
+        errors.flush();
+        return OptionalInt.of(exitCode);
+      } catch (IOException e) {
+        errors.println("Lost the merge daemon while merging " + pathName + ": " + e);
+        return OptionalInt.of(Main.EXIT_FAILURE);
+      }
+    } catch (IOException e) {
+      // No daemon (or one that is shutting down).
+      return OptionalInt.empty();
+    }
+  }
+
+  /**
+   * Check whether a daemon is listening on a socket.
+   *
+   * @param socketPath the path of the socket
+   * @return whether the socket is owned by the current user and a connection to it succeeds
+   */
+  static boolean isServing(Path socketPath) {
+    if (!MergeDaemon.isOwnedByCurrentUser(socketPath)) return false;
+
+    try (var daemon = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      daemon.connect(UnixDomainSocketAddress.of(socketPath));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.kjy5.cache.BlobCache;
+
+/**
+ * A long-lived merge server for one Git repository.
+ *
+ * <p>Every merge driver invocation starts a new JVM, which pays for class loading, matcher
+ * registration, and a cold JIT before merging anything. The daemon keeps one warm {@link
+ * MergePipeline} and serves driver requests from {@link MergeClient} over a Unix domain socket. It
+ * shuts down after a period without requests.
+ *
+ * <p>A request is the driver's four file paths (absolute, so the daemon's working directory does
+ * not matter). The daemon acknowledges the request before merging, so a client can tell whether it
+ * is safe to fall back to merging in-process, then reads and writes the files itself and replies
+ * with the driver's exit code and error output.
+ *
+ * @author Kenneth Yang
+ */
+public class MergeDaemon {
+  // region Constants.
+  /** Version of the request/response protocol, sent at the start of every request. */
+  static final int PROTOCOL_VERSION = 1;
+
+  /** Byte sent once a request has been read, before merging. */
+  static final int ACKNOWLEDGEMENT = 1;
+
+  /** Default time without requests before the daemon shuts down. */
+  public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+  /** Name of the per-user socket directory in the runtime or temporary directory. */
+  private static final String SOCKET_DIRECTORY_NAME = "ast-merge";
+
+  /** Name of the socket directory in the repository's cache directory. */
+  private static final String CACHE_SOCKET_DIRECTORY_NAME = "sockets";
+
+  private static final String SOCKET_FILE_PREFIX = "ast-merge-";
+  private static final String SOCKET_FILE_SUFFIX = ".sock";
+
+  /** Length of the repository hash in the socket file name (Unix socket paths are short). */
+  private static final int SOCKET_HASH_LENGTH = 16;
+
+  /** Longest socket path in bytes (the platform limit is 104 to 108, including a terminator). */
+  private static final int MAX_SOCKET_PATH_LENGTH = 100;
+
+  /** Permissions of the socket directory. */
+  private static final Set<PosixFilePermission> OWNER_ONLY =
+      PosixFilePermissions.fromString("rwx------");
+
+  // endregion
+
+  // region Fields.
+  private final Path socketPath;
+  private final MergePipeline pipeline;
+  private final Duration idleTimeout;
+
+  /** Lock guarding the request activity, so the idle check sees accepts and finishes in order. */
+  private final Object activityLock = new Object();
+
+  /** Number of requests being served. */
+  private int activeRequests;
+
+  /** Time the last request was received or finished ({@link System#nanoTime()}). */
+  private long lastActivity = System.nanoTime();
+
+  // endregion
+
+  /**
+   * Create a merge daemon.
+   *
+   * @param socketPath the path of the Unix domain socket to listen on
+   * @param pipeline the merge pipeline shared by all requests
+   * @param idleTimeout the time without requests before the daemon shuts down
+   */
+  public MergeDaemon(Path socketPath, MergePipeline pipeline, Duration idleTimeout) {
+    this.socketPath = socketPath;
+    this.pipeline = pipeline;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Find the daemon socket of the current Git repository, without creating or changing anything.
+   *
+   * <p>The socket is named by a hash of the absolute Git directory path and lives in a directory
+   * that only the current user can access, so other users can neither impersonate the daemon nor
+   * read the merged files. The directory is the first of {@code $XDG_RUNTIME_DIR/ast-merge}, a
+   * directory in the repository's cache directory, and a per-user directory in the temporary
+   * directory whose socket path fits the limit on Unix domain socket paths (about 100 bytes).
+   *
+   * @return the socket path, or null if the working directory is not in a Git repository or no
+   *     private socket directory exists
+   */
+  public static Path socketPath() {
+    return socketPath(false);
+  }
+
+  /**
+   * Find the daemon socket of the current Git repository, creating its directory if needed.
+   *
+   * <p>Like {@link #socketPath()}, but missing candidate directories are created accessible only to
+   * the current user, and the permissions of existing ones they own are narrowed to them.
+   *
+   * @return the socket path, or null if the working directory is not in a Git repository or no
+   *     private socket directory can be created
+   */
+  public static Path createSocketPath() {
+    return socketPath(true);
+  }
+
+  /**
+   * Find the daemon socket of the current Git repository.
+   *
+   * @param create whether to create the socket directory (only the daemon does)
+   * @return the socket path, or null if there is none
+   */
+  private static Path socketPath(boolean create) {
+    final var cacheDirectory = BlobCache.gitCacheDirectory("");
+    if (cacheDirectory == null) return null;
+
+    final var cachePath = cacheDirectory.toAbsolutePath().normalize().toString();
+    final var repositoryHash = BlobCache.keyOf(cachePath.getBytes(StandardCharsets.UTF_8));
+    final var socketFileName =
+        SOCKET_FILE_PREFIX + repositoryHash.substring(0, SOCKET_HASH_LENGTH) + SOCKET_FILE_SUFFIX;
+
+    // Candidate socket directories, most preferred first.
+    final var socketDirectories = new ArrayList<Path>();
+    final var runtimeDirectory = System.getenv("XDG_RUNTIME_DIR");
+    if (runtimeDirectory != null && !runtimeDirectory.isEmpty()) {
+      socketDirectories.add(Path.of(runtimeDirectory).resolve(SOCKET_DIRECTORY_NAME));
+    }
+    socketDirectories.add(cacheDirectory.resolve(CACHE_SOCKET_DIRECTORY_NAME));
+    socketDirectories.add(
+        Path.of(System.getProperty("java.io.tmpdir"))
+            .resolve(SOCKET_DIRECTORY_NAME + "-" + System.getProperty("user.name")));
+
+    for (final var socketDirectory : socketDirectories) {
+      final var socketPath = socketDirectory.toAbsolutePath().normalize().resolve(socketFileName);
+      if (socketPath.toString().getBytes(StandardCharsets.UTF_8).length <= MAX_SOCKET_PATH_LENGTH
+          && (create
+              ? makePrivateDirectory(socketPath.getParent())
+              : isPrivateDirectory(socketPath.getParent()))) {
+        return socketPath;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Serve merge requests until the daemon has been idle for the idle timeout.
+   *
+   * <p>Requests are merged concurrently, up to one per processor (each on one thread if the
+   * pipeline is sequential).
+   *
+   * @throws IOException if the socket cannot be bound (for example, another daemon is serving the
+   *     repository)
+   */
+  public void serve() throws IOException {
+    // Replace a socket left behind by a daemon that did not shut down cleanly (but never another
+    // user's file).
+    if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+      if (!isOwnedByCurrentUser(socketPath)) {
+        throw new IOException(socketPath + " is not owned by the current user.");
+      }
+      if (MergeClient.isServing(socketPath)) {
+        throw new IOException("Another daemon is serving " + socketPath + ".");
+      }
+      Files.delete(socketPath);
+    }
+
+    final var workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    final var idleCheck = Executors.newSingleThreadScheduledExecutor();
+    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+
+      // Stop accepting requests once idle (closing the server unblocks accept).
+      final var checkPeriod = Math.max(1, idleTimeout.toMillis() / 10);
+      idleCheck.scheduleWithFixedDelay(
+          () -> {
+            synchronized (activityLock) {
+              if (isIdle()) closeQuietly(server);
+            }
+          },
+          checkPeriod,
+          checkPeriod,
+          TimeUnit.MILLISECONDS);
+
+      while (true) {
+        final SocketChannel client;
+        try {
+          client = server.accept();
+        } catch (ClosedChannelException e) {
+          // Closed by the idle check, while accepting or between accepts.
+          break;
+        }
+
+        // A request accepted just before the idle check closed the server is still served.
+        synchronized (activityLock) {
+          activeRequests++;
+          lastActivity = System.nanoTime();
+        }
+        workers.execute(
+            () -> {
+              try (client) {
+                serveRequest(client);
+              } catch (IOException e) {
+                // The client went away; it reports the failure itself.
+              } finally {
+                synchronized (activityLock) {
+                  activeRequests--;
+                  lastActivity = System.nanoTime();
+                }
+              }
+            });
+      }
+    } finally {
+      idleCheck.shutdownNow();
+      workers.shutdown();
+      Files.deleteIfExists(socketPath);
+    }
+
+    // Let requests accepted before the shutdown finish.
+    try {
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // region Socket helpers.
+
+  /**
+   * Check whether a file is owned by the current user.
+   *
+   * @param path the path of the file (not followed if it is a symbolic link)
+   * @return whether the file exists and is owned by the current user
+   */
+  static boolean isOwnedByCurrentUser(Path path) {
+    if (CurrentUser.PRINCIPAL == null) return false;
+    try {
+      return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(CurrentUser.PRINCIPAL);
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Check whether an existing directory is accessible only to the current user.
+   *
+   * @param directory the directory
+   * @return whether the directory is a real directory (not a symbolic link) owned by the current
+   *     user and, where the file system has POSIX permissions, accessible only to them
+   */
+  private static boolean isPrivateDirectory(Path directory) {
+    try {
+      return Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)
+          && isOwnedByCurrentUser(directory)
+          && (!isPosix(directory)
+              || Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS)
+                  .equals(OWNER_ONLY));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Create a directory only the current user can access, or narrow the permissions of an existing
+   * one they own to them.
+   *
+   * @param directory the directory
+   * @return whether the directory is now private (see {@link #isPrivateDirectory(Path)})
+   */
+  private static boolean makePrivateDirectory(Path directory) {
+    try {
+      if (isPosix(directory)) {
+        Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        if (Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)
+            && isOwnedByCurrentUser(directory)) {
+          Files.setPosixFilePermissions(directory, OWNER_ONLY);
+        }
+      } else {
+        Files.createDirectories(directory);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    return isPrivateDirectory(directory);
+  }
+
+  /**
+   * Check whether a path's file system has POSIX permissions.
+   *
+   * @param path the path
+   * @return whether its file system supports the POSIX attribute view
+   */
+  private static boolean isPosix(Path path) {
+    return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+  }
+
+  /** The current user, as the owner of the files this process creates. */
+  private static final class CurrentUser {
+    /** The current user, or null if file ownership is unavailable. */
+    static final UserPrincipal PRINCIPAL = lookup();
+
+    /**
+     * Find the current user by creating a temporary file (the user name in the system properties
+     * may not match the process's user ID).
+     *
+     * @return the owner of the temporary file, or null if it could not be created or read
+     */
+    private static UserPrincipal lookup() {
+      try {
+        final var file = Files.createTempFile(SOCKET_FILE_PREFIX, ".owner");
+        try {
+          return Files.getOwner(file, LinkOption.NOFOLLOW_LINKS);
+        } finally {
+          Files.deleteIfExists(file);
+        }
+      } catch (IOException | UnsupportedOperationException e) {
+        return null;
+      }
+    }
+  }
+
+  // endregion
+
+  // region Request helpers.
+
+  /**
+   * Serve one merge request.
+   *
+   * @param client the client connection
+   * @throws IOException if the client connection fails
+   */
+  private void serveRequest(SocketChannel client) throws IOException {
+    final var input = new DataInputStream(Channels.newInputStream(client));
+    final var output = new DataOutputStream(Channels.newOutputStream(client));
+
+    // Read the request.
+    if (input.readInt() != PROTOCOL_VERSION) return;
+    final var ancestorPath = input.readUTF();
+    final var currentPath = input.readUTF();
+    final var otherPath = input.readUTF();
+    final var pathName = input.readUTF();
+    output.writeByte(ACKNOWLEDGEMENT);
+    output.flush();
+
+    // Merge, capturing the error output for the client.
+    final var errorBytes = new ByteArrayOutputStream();
+    final int exitCode;
+    try (var errors = new PrintStream(errorBytes, true, StandardCharsets.UTF_8)) {
+      exitCode = Main.runDriver(pipeline, ancestorPath, currentPath, otherPath, pathName, errors);
+    }
+
+    // Reply.
+    output.writeInt(exitCode);
+    output.writeInt(errorBytes.size());
+    errorBytes.writeTo(output);
+    output.flush();
+  }
+
+  /**
+   * Check whether the daemon has been idle for the idle timeout (holding the activity lock).
+   *
+   * @return whether no request is being served and none was received within the idle timeout
+   */
+  private boolean isIdle() {
+    return activeRequests == 0 && System.nanoTime() - lastActivity >= idleTimeout.toNanos();
+  }
+
+  /**
+   * Close the server socket, ignoring errors.
+   *
+   * @param server the server socket
+   */
+  private static void closeQuietly(ServerSocketChannel server) {
+    try {
+      server.close();
+    } catch (IOException e) {
+      // Already closed.
+    }
+  }
+  // endregion
+}
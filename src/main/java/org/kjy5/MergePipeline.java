@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import com.github.gumtreediff.matchers.Matcher;
+import com.github.gumtreediff.matchers.Matchers;
+import com.github.gumtreediff.tree.Tree;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kjy5.cache.MatchCache;
+import org.kjy5.cache.ParseCache;
+import org.kjy5.spork.ChangeSet;
+import org.kjy5.spork.ChildListVirtualNodes;
+import org.kjy5.spork.ClassRepresentatives;
+import org.kjy5.spork.InsertionMatching;
+import org.kjy5.spork.Merger;
+import org.kjy5.spork.NodeIds;
+import org.kjy5.spork.Revision;
+import org.kjy5.spork.UnchangedSubtrees;
+
+/**
+ * The merge pipeline: parse, match, merge, and print.
+ *
+ * <p>Inputs and outputs are held in memory, so callers decide how files are read and written. The
+ * parse and match caches are kept for the lifetime of the pipeline.
+ *
+ * @author Kenneth Yang
+ */
+public class MergePipeline {
+  // region Constants.
+  private static final String MERGE_TABLE_FORMAT = "%-10s%-10s%-15s%n";
+
+  /** System property with the ID of the GumTree matcher to use (the default matcher if unset). */
+  public static final String MATCHER_PROPERTY = "ast.merge.matcher";
+
+  // endregion
+
+  // region Fields.
+  private final ParseCache parseCache;
+  private final MatchCache matchCache;
+
+  /** Whether each merge parses, matches, and resolves on several threads. */
+  private final boolean concurrent;
+
+  /** Number of merges run. */
+  private final AtomicLong mergeCount = new AtomicLong();
+
+  /** Number of merges that were trivial at the file level. */
+  private final AtomicLong trivialMergeCount = new AtomicLong();
+
+  // endregion
+
+  /**
+   * A source file of a merge.
+   *
+   * @param name the name of the file (used to label conflicts)
+   * @param content the content of the file
+   */
+  public record Source(String name, byte[] content) {}
+
+  /**
+   * The result of a merge.
+   *
+   * @param merged the merged file content, as read-only spans of the sources (in order)
+   * @param conflicts whether the merge has conflicts
+   */
+  public record Result(List<ByteBuffer> merged, boolean conflicts) {
+    /**
+     * Get the merged file content in one array.
+     *
+     * @return a copy of the merged file content
+     */
+    public byte[] mergedBytes() {
+      var output = new ByteArrayOutputStream();
+      for (var span : merged) {
+        final var bytes = new byte[span.remaining()];
+        span.duplicate().get(bytes);
+        output.writeBytes(bytes);
+      }
+      return output.toByteArray();
+    }
+
+    /**
+     * Write the merged file content to a file, replacing its content.
+     *
+     * <p>The spans are written straight from the sources with gathering writes, so the merged
+     * content is never assembled in memory.
+     *
+     * @param path the path of the file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeTo(Path path) throws IOException {
+      final var spans = new ByteBuffer[merged.size()];
+      var remaining = 0L;
+      for (var i = 0; i < spans.length; i++) {
+        spans[i] = merged.get(i).duplicate();
+        remaining += spans[i].remaining();
+      }
+
+      try (var channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (remaining > 0) remaining -= channel.write(spans);
+      }
+    }
+  }
+
+  /**
+   * Create a merge pipeline.
+   *
+   * @param parseCache the cache of previously parsed source code
+   * @param matchCache the cache of previously computed matchings
+   */
+  public MergePipeline(ParseCache parseCache, MatchCache matchCache) {
+    this(parseCache, matchCache, true);
+  }
+
+  /**
+   * Create a merge pipeline.
+   *
+   * <p>A concurrent pipeline parses and matches the branches of a merge on several threads, and
+   * resolves large merges on the common fork-join pool. Callers that already run one merge per
+   * processor should use a sequential pipeline, so each merge stays on its own thread.
+   *
+   * @param parseCache the cache of previously parsed source code
+   * @param matchCache the cache of previously computed matchings
+   * @param concurrent whether each merge runs its stages on several threads
+   */
+  public MergePipeline(ParseCache parseCache, MatchCache matchCache, boolean concurrent) {
+    this.parseCache = parseCache;
+    this.matchCache = matchCache;
+    this.concurrent = concurrent;
+  }
+
+  /**
+   * Create a concurrent merge pipeline with the caches of the current Git repository.
+   *
+   * @return the merge pipeline
+   */
+  public static MergePipeline inGitDirectory() {
+    return inGitDirectory(true);
+  }
+
+  /**
+   * Create a merge pipeline with the caches of the current Git repository.
+   *
+   * @param concurrent whether each merge runs its stages on several threads (see {@link
+   *     #MergePipeline(ParseCache, MatchCache, boolean)})
+   * @return the merge pipeline
+   */
+  public static MergePipeline inGitDirectory(boolean concurrent) {
+    return new MergePipeline(ParseCache.inGitDirectory(), MatchCache.inGitDirectory(), concurrent);
+  }
+
+  /**
+   * Get the number of merges run by the pipeline.
+   *
+   * @return the number of calls to {@link #merge(Source, Source, Source, boolean)}
+   */
+  public long mergeCount() {
+    return mergeCount.get();
+  }
+
+  /**
+   * Get the number of merges that were trivial at the file level (see {@link TrivialMerge}).
+   *
+   * @return the number of merges that needed no parsing
+   */
+  public long trivialMergeCount() {
+    return trivialMergeCount.get();
+  }
+
+  /**
+   * Describe how often the pipeline's merges were trivial.
+   *
+   * @return the trivial merge hit rate, formatted for printing
+   */
+  public String trivialHitRate() {
+    return TrivialMerge.hitRate(trivialMergeCount.get(), mergeCount.get());
+  }
+
+  /**
+   * Merge three versions of a file.
+   *
+   * <p>Runs the full Spork algorithm, unless the merge is trivial at the file level (see {@link
+   * TrivialMerge}), in which case nothing is parsed.
+   *
+   * @param base the base version
+   * @param left the left version
+   * @param right the right version
+   * @param verbose whether to print statistics and the merged tree to standard output
+   * @return the merge result
+   */
+  public Result merge(Source base, Source left, Source right, boolean verbose) {
+    mergeCount.incrementAndGet();
+
+    // region Trivial merge (no parsing needed).
+    final var maybeTrivialMerge =
+        TrivialMerge.attempt(base.content(), left.content(), right.content());
+    if (maybeTrivialMerge.isPresent()) {
+      trivialMergeCount.incrementAndGet();
+      if (verbose) {
+        System.out.println(
+            "Trivial merge ("
+                + maybeTrivialMerge.get().kind()
+                + "), hit rate "
+                + trivialHitRate()
+                + ".");
+      }
+      return new Result(
+          List.of(ByteBuffer.wrap(maybeTrivialMerge.get().merged()).asReadOnlyBuffer()), false);
+    }
+    if (verbose) {
+      System.out.println("Non-trivial merge, trivial hit rate " + trivialHitRate() + ".");
+    }
+    // endregion
+
+    return mergeTrees(base, left, right, verbose);
+  }
+
+  /**
+   * Merge three versions of a file with the Spork algorithm.
+   *
+   * <p>Kept apart from {@link #merge(Source, Source, Source, boolean)}, so that the parser,
+   * matchers, and merge algorithm are only loaded once a merge turns out to be non-trivial.
+   *
+   * @param base the base version
+   * @param left the left version
+   * @param right the right version
+   * @param verbose whether to print statistics and the merged tree to standard output
+   * @return the merge result
+   */
+  private Result mergeTrees(Source base, Source left, Source right, boolean verbose) {
+    // region Create matching between branches.
+
+    // Parse the three branches (skipping blobs parsed by earlier merges).
+    final var trees =
+        runStage(
+            "parse source code",
+            () -> parse(base.content()),
+            () -> parse(left.content()),
+            () -> parse(right.content()));
+    final var baseTree = trees.get(0);
+    final var leftTree = trees.get(1);
+    final var rightTree = trees.get(2);
+
+    // TODO: Consider mapping from left/right to base to better follow usage direction later.
+    // Match base to left and right (each with its own matcher instance), reusing matchings of blob
+    // pairs seen by earlier merges.
+    final var matcherConfiguration = ConfiguredMatcher.CONFIGURATION;
+    final var baseMatchings =
+        runStage(
+            "match trees",
+            () ->
+                matchCache.match(
+                    MatchCache.keyOf(matcherConfiguration, base.content(), left.content()),
+                    baseTree,
+                    leftTree,
+                    () -> ConfiguredMatcher.newMatcher().match(baseTree, leftTree)),
+            () ->
+                matchCache.match(
+                    MatchCache.keyOf(matcherConfiguration, base.content(), right.content()),
+                    baseTree,
+                    rightTree,
+                    () -> ConfiguredMatcher.newMatcher().match(baseTree, rightTree)));
+    final var baseToLeft = baseMatchings.get(0);
+    final var baseToRight = baseMatchings.get(1);
+
+    // Left and right only need to be matched where both branches inserted under the same node
+    // (which depends on base too).
+    final var leftToRight =
+        matchCache.match(
+            MatchCache.keyOf(
+                InsertionMatching.class.getName() + "/" + matcherConfiguration,
+                base.content(),
+                left.content(),
+                right.content()),
+            leftTree,
+            rightTree,
+            () ->
+                InsertionMatching.match(
+                    leftTree,
+                    rightTree,
+                    baseToLeft,
+                    baseToRight,
+                    ConfiguredMatcher.newMatcher()));
+
+    // Collapse subtrees that are unchanged in all three branches.
+    final var prunedNodeCount =
+        UnchangedSubtrees.mark(baseTree, leftTree, rightTree, baseToLeft, baseToRight);
+    if (verbose) System.out.format("Pruned %d unchanged nodes per branch.%n%n", prunedNodeCount);
+    // endregion
+
+    // region Create class representative mappings.
+    final var nodeToClassRepresentatives =
+        ClassRepresentatives.from(
+            baseTree, leftTree, rightTree, baseToLeft, baseToRight, leftToRight);
+    // endregion
+
+    // region Create change sets (PCS and content tuples).
+
+    // Node numbering shared by the change sets.
+    var nodeIds = new NodeIds();
+
+    // Virtual node mappings.
+    var astRootToVirtualRoot = new LinkedHashMap<Tree, Tree>();
+    var nodeToChildListVirtualNodes = new LinkedHashMap<Tree, ChildListVirtualNodes>();
+
+    final var baseChangeSet =
+        ChangeSet.from(
+            baseTree,
+            nodeToClassRepresentatives,
+            nodeIds,
+            astRootToVirtualRoot,
+            nodeToChildListVirtualNodes);
+    final var leftChangeSet =
+        ChangeSet.from(
+            leftTree,
+            nodeToClassRepresentatives,
+            nodeIds,
+            astRootToVirtualRoot,
+            nodeToChildListVirtualNodes);
+    final var rightChangeSet =
+        ChangeSet.from(
+            rightTree,
+            nodeToClassRepresentatives,
+            nodeIds,
+            astRootToVirtualRoot,
+            nodeToChildListVirtualNodes);
+    if (verbose) {
+      System.out.format(MERGE_TABLE_FORMAT, "State", "# PCSs", "# ContentTuples");
+      System.out.format(
+          MERGE_TABLE_FORMAT,
+          "Base",
+          baseChangeSet.pcsSet().size(),
+          baseChangeSet.contentTupleSet().size());
+      System.out.format(
+          MERGE_TABLE_FORMAT,
+          "Left",
+          leftChangeSet.pcsSet().size(),
+          leftChangeSet.contentTupleSet().size());
+      System.out.format(
+          MERGE_TABLE_FORMAT,
+          "Right",
+          rightChangeSet.pcsSet().size(),
+          rightChangeSet.contentTupleSet().size());
+      System.out.format(
+          MERGE_TABLE_FORMAT,
+          "Total",
+          baseChangeSet.pcsSet().size()
+              + leftChangeSet.pcsSet().size()
+              + rightChangeSet.pcsSet().size(),
+          baseChangeSet.contentTupleSet().size()
+              + leftChangeSet.contentTupleSet().size()
+              + rightChangeSet.contentTupleSet().size());
+    }
+    // endregion
+
+    // region Merge.
+    final var mergedChangeSet =
+        concurrent
+            ? Merger.merge(baseChangeSet, leftChangeSet, rightChangeSet)
+            : Merger.merge(baseChangeSet, leftChangeSet, rightChangeSet, false);
+    if (verbose) {
+      System.out.format(
+          MERGE_TABLE_FORMAT,
+          "Merged",
+          mergedChangeSet.pcsSet().size(),
+          mergedChangeSet.contentTupleSet().size());
+    }
+    // endregion
+
+    // region Rebuild AST from merged change set.
+    final var mergedTree = mergedChangeSet.toGumTreeTree();
+    if (verbose) {
+      System.out.println();
+      System.out.println("Merged tree:");
+      mergedTree
+          .preOrder()
+          .forEach(
+              node ->
+                  System.out.println(nodeToClassRepresentatives.revisionOf(node) + ": " + node));
+    }
+    // endregion
+
+    // region Print merged tree.
+    // Nodes and content tuples are traced back to their sources by revision.
+    var revisionSources = new EnumMap<Revision, Source>(Revision.class);
+    revisionSources.put(Revision.BASE, base);
+    revisionSources.put(Revision.LEFT, left);
+    revisionSources.put(Revision.RIGHT, right);
+    final var merged =
+        Printer.print(
+            mergedTree,
+            mergedChangeSet.contentTupleSet(),
+            nodeToClassRepresentatives,
+            revisionSources);
+    if (verbose) {
+      System.out.println();
+      System.out.println("Merged result:");
+      System.out.println(new String(new Result(merged, false).mergedBytes()));
+    }
+    // endregion
+
+    return new Result(merged, mergedChangeSet.hasConflicts());
+  }
+
+  /**
+   * Run the tasks of a merge stage, concurrently if the pipeline is concurrent.
+   *
+   * @param stage what the stage does, for error messages
+   * @param tasks the tasks
+   * @param <T> the type of the results
+   * @return the results of the tasks, in order
+   */
+  @SafeVarargs
+  private <T> List<T> runStage(String stage, Callable<T>... tasks) {
+    var results = new ArrayList<T>(tasks.length);
+    if (!concurrent) {
+      for (var task : tasks) {
+        try {
+          results.add(task.call());
+        } catch (Exception e) {
+          throw new RuntimeException("Unable to " + stage + ": " + e);
+        }
+      }
+      return results;
+    }
+
+    try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+      var subtasks = new ArrayList<StructuredTaskScope.Subtask<T>>(tasks.length);
+      for (var task : tasks) subtasks.add(scope.fork(task));
+      scope.join().throwIfFailed(e -> new RuntimeException("Unable to " + stage + ": " + e));
+
+      for (var subtask : subtasks) results.add(subtask.get());
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while trying to " + stage + ".", e);
+    }
+  }
+
+  /**
+   * Parse Java source code.
+   *
+   * <p>The tree metrics are computed up front, so that trees can be read by concurrent matchers
+   * without racing to compute them lazily.
+   *
+   * @param source the source code bytes
+   * @return the root of the parsed tree
+   * @throws IOException if the source code cannot be parsed
+   */
+  private Tree parse(byte[] source) throws IOException {
+    final var tree = parseCache.parse(source);
+    tree.getMetrics();
+    return tree;
+  }
+
+  /**
+   * The configured GumTree matcher, looked up on the first non-trivial merge.
+   *
+   * <p>Only the matcher registry's built-in matchers are installed (instead of the reflective scan
+   * of {@code Run.initMatchers()}), and trivial merges never load the registry.
+   */
+  private static final class ConfiguredMatcher {
+    /** ID of the matcher, or null for the default matcher. */
+    private static final String ID = System.getProperty(MATCHER_PROPERTY);
+
+    /** Name of the matcher class, part of the cache key of every matching. */
+    static final String CONFIGURATION = newMatcher().getClass().getName();
+
+    /**
+     * Create an instance of the configured matcher.
+     *
+     * @return a new matcher (matchers are not shared between concurrent matchings)
+     */
+    static Matcher newMatcher() {
+      final var matcher =
+          ID == null ? Matchers.getInstance().getMatcher() : Matchers.getInstance().getMatcher(ID);
+      if (matcher == null) throw new IllegalStateException("Unknown matcher: " + ID);
+      return matcher;
+    }
+  }
+}
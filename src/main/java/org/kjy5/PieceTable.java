@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A byte buffer built from splices of source buffers, without copying any bytes until the end.
+ *
+ * <p>The content is a sequence of pieces, each a span of a registered source buffer. Bytes of a
+ * span past the end of its source read as zero. The pieces are kept in a treap ordered by position
+ * (each piece keyed implicitly by the total length of the pieces before it), so inserting or
+ * deleting a span takes logarithmic time in the number of pieces, whatever the lengths of the
+ * spans. Pieces are stored in parallel primitive arrays, so splices allocate no objects, and the
+ * content is read out as views of the sources rather than copied.
+ *
+ * @author Kenneth Yang
+ */
+final class PieceTable {
+  // region Constants.
+  /** Index of the empty treap. */
+  private static final int NIL = -1;
+
+  private static final int MINIMUM_CAPACITY = 16;
+
+  // endregion
+
+  // region Fields.
+  private final ArrayList<ByteBuffer> sources = new ArrayList<>();
+
+  // Piece columns (by piece index).
+  private int[] sourceIds;
+  private int[] starts;
+  private int[] lengths;
+
+  // Treap columns (by piece index).
+  private int[] priorities;
+  private int[] lefts;
+  private int[] rights;
+
+  /** Total length of the pieces in each subtree. */
+  private int[] subtreeLengths;
+
+  private int pieceCount;
+  private int root = NIL;
+
+  /** The left part of the last {@link #split(int, int)}. */
+  private int splitLeft;
+
+  /** State of the priority generator (xorshift). */
+  private int seed = 0x2545F491;
+
+  // endregion
+
+  /**
+   * Create an empty piece table.
+   *
+   * @param expectedPieces the number of pieces expected to be created
+   */
+  PieceTable(int expectedPieces) {
+    final var capacity = Math.max(expectedPieces, MINIMUM_CAPACITY);
+    sourceIds = new int[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    priorities = new int[capacity];
+    lefts = new int[capacity];
+    rights = new int[capacity];
+    subtreeLengths = new int[capacity];
+  }
+
+  // region Buffer methods.
+
+  /**
+   * Register a source buffer that pieces can refer to.
+   *
+   * @param source the source buffer (its content must not change while the table is in use)
+   * @return the ID of the source, assigned in registration order starting at 0
+   */
+  int addSource(ByteBuffer source) {
+    sources.add(source);
+    return sources.size() - 1;
+  }
+
+  /**
+   * Get the length of the content.
+   *
+   * @return the number of bytes in the content
+   */
+  int size() {
+    return root == NIL ? 0 : subtreeLengths[root];
+  }
+
+  /**
+   * Insert a span of a source into the content.
+   *
+   * @param index the position in the content to insert at
+   * @param sourceId the ID of the source
+   * @param start the start of the span in the source
+   * @param length the length of the span
+   * @throws IndexOutOfBoundsException if the position is past the end of the content
+   */
+  void insert(int index, int sourceId, int start, int length) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    if (length == 0) return;
+
+    final var piece = newPiece(sourceId, start, length);
+    final var after = split(root, index);
+    root = merge(merge(splitLeft, piece), after);
+  }
+
+  /**
+   * Delete a range of the content.
+   *
+   * @param from the start of the range (inclusive)
+   * @param to the end of the range (exclusive)
+   * @throws IndexOutOfBoundsException if the range is not within the content
+   */
+  void delete(int from, int to) {
+    if (from < 0 || to > size() || from > to) {
+      throw new IndexOutOfBoundsException("From: " + from + ", To: " + to + ", Size: " + size());
+    }
+    if (from == to) return;
+
+    final var after = split(root, to);
+    split(splitLeft, from);
+    root = merge(splitLeft, after);
+  }
+
+  /**
+   * Get the content as spans of the sources, dropping null bytes (including reads past the end of a
+   * source).
+   *
+   * <p>Pieces that continue each other in the same source are coalesced, so a region of a source
+   * that survived the splices is one span, however many pieces it was split into. Spans are
+   * read-only views of the sources, so nothing is copied.
+   *
+   * @return the spans of the content without null bytes, in order
+   */
+  List<ByteBuffer> toSpansWithoutNullBytes() {
+    var spans = new ArrayList<ByteBuffer>();
+    var spanSourceId = NIL;
+    var spanStart = 0;
+    var spanEnd = 0;
+
+    // Visit the pieces in order.
+    var pending = new int[64];
+    var pendingCount = 0;
+    var piece = root;
+    while (piece != NIL || pendingCount > 0) {
+      while (piece != NIL) {
+        if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+        pending[pendingCount++] = piece;
+        piece = lefts[piece];
+      }
+      piece = pending[--pendingCount];
+
+      // Add the runs of non-null bytes within the source, extending the last span if contiguous.
+      final var source = sources.get(sourceIds[piece]);
+      final var end = Math.min(starts[piece] + lengths[piece], source.limit());
+      var runStart = starts[piece];
+      while (runStart < end) {
+        if (source.get(runStart) == 0) {
+          runStart++;
+          continue;
+        }
+        var runEnd = runStart + 1;
+        while (runEnd < end && source.get(runEnd) != 0) runEnd++;
+
+        if (sourceIds[piece] != spanSourceId || runStart != spanEnd) {
+          if (spanSourceId != NIL) spans.add(spanOf(spanSourceId, spanStart, spanEnd));
+          spanSourceId = sourceIds[piece];
+          spanStart = runStart;
+        }
+        spanEnd = runEnd;
+        runStart = runEnd;
+      }
+
+      piece = rights[piece];
+    }
+    if (spanSourceId != NIL) spans.add(spanOf(spanSourceId, spanStart, spanEnd));
+
+    return spans;
+  }
+
+  // endregion
+
+  // region Treap helpers.
+
+  /**
+   * Split a treap by position.
+   *
+   * <p>A piece straddling the position is split into two pieces. The part before the position is
+   * left in {@link #splitLeft}.
+   *
+   * @param treap the root of the treap to split
+   * @param index the number of bytes to put in the left part
+   * @return the root of the right part
+   */
+  private int split(int treap, int index) {
+    if (treap == NIL) {
+      splitLeft = NIL;
+      return NIL;
+    }
+
+    final var leftLength = lengthOf(lefts[treap]);
+    if (index <= leftLength) {
+      // The position is in the left subtree.
+      final var right = split(lefts[treap], index);
+      lefts[treap] = right;
+      update(treap);
+      return treap;
+    }
+
+    if (index >= leftLength + lengths[treap]) {
+      // The position is in the right subtree.
+      final var right = split(rights[treap], index - leftLength - lengths[treap]);
+      rights[treap] = splitLeft;
+      update(treap);
+      splitLeft = treap;
+      return right;
+    }
+
+    // The position is inside this piece: keep the head here and move the tail to a new piece.
+    final var headLength = index - leftLength;
+    final var tail =
+        newPiece(sourceIds[treap], starts[treap] + headLength, lengths[treap] - headLength);
+    lengths[treap] = headLength;
+    final var right = merge(tail, rights[treap]);
+    rights[treap] = NIL;
+    update(treap);
+    splitLeft = treap;
+    return right;
+  }
+
+  /**
+   * Merge two treaps, all of whose pieces are in order.
+   *
+   * @param left the root of the treap with the earlier pieces
+   * @param right the root of the treap with the later pieces
+   * @return the root of the merged treap
+   */
+  private int merge(int left, int right) {
+    if (left == NIL) return right;
+    if (right == NIL) return left;
+
+    if (priorities[left] > priorities[right]) {
+      rights[left] = merge(rights[left], right);
+      update(left);
+      return left;
+    }
+    lefts[right] = merge(left, lefts[right]);
+    update(right);
+    return right;
+  }
+
+  /**
+   * Create a read-only view of a span of a source.
+   *
+   * @param sourceId the ID of the source
+   * @param start the start of the span
+   * @param end the end of the span (exclusive)
+   * @return the view of the span
+   */
+  private ByteBuffer spanOf(int sourceId, int start, int end) {
+    return sources.get(sourceId).slice(start, end - start).asReadOnlyBuffer();
+  }
+
+  /**
+   * Create a piece (as a single-node treap).
+   *
+   * @param sourceId the ID of the source
+   * @param start the start of the span in the source
+   * @param length the length of the span
+   * @return the index of the piece
+   */
+  private int newPiece(int sourceId, int start, int length) {
+    if (pieceCount == sourceIds.length) {
+      final var capacity = pieceCount * 2;
+      sourceIds = Arrays.copyOf(sourceIds, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      priorities = Arrays.copyOf(priorities, capacity);
+      lefts = Arrays.copyOf(lefts, capacity);
+      rights = Arrays.copyOf(rights, capacity);
+      subtreeLengths = Arrays.copyOf(subtreeLengths, capacity);
+    }
+
+    final var piece = pieceCount++;
+    sourceIds[piece] = sourceId;
+    starts[piece] = start;
+    lengths[piece] = length;
+    priorities[piece] = nextPriority();
+    lefts[piece] = NIL;
+    rights[piece] = NIL;
+    subtreeLengths[piece] = length;
+    return piece;
+  }
+
+  /**
+   * Recompute the subtree length of a piece from its children.
+   *
+   * @param piece the index of the piece
+   */
+  private void update(int piece) {
+    subtreeLengths[piece] = lengthOf(lefts[piece]) + lengths[piece] + lengthOf(rights[piece]);
+  }
+
+  /**
+   * Get the length of a treap.
+   *
+   * @param treap the root of the treap
+   * @return the total length of its pieces
+   */
+  private int lengthOf(int treap) {
+    return treap == NIL ? 0 : subtreeLengths[treap];
+  }
+
+  /**
+   * Generate a pseudo-random treap priority.
+   *
+   * @return the next priority
+   */
+  private int nextPriority() {
+    seed ^= seed << 13;
+    seed ^= seed >>> 17;
+    seed ^= seed << 5;
+    return seed;
+  }
+  // endregion
+}
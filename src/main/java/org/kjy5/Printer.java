@@ -1,76 +1,87 @@
 package org.kjy5;
 
 import com.github.gumtreediff.tree.Tree;
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import org.kjy5.spork.ClassRepresentatives;
 import org.kjy5.spork.ContentTuple;
+import org.kjy5.spork.ContentTupleSet;
+import org.kjy5.spork.Revision;
+import org.kjy5.spork.UnchangedSubtrees;
 
 /** Printer for GumTree ASTs. */
 public class Printer {
   /**
-   * Print a GumTree AST to a file.
+   * Print a GumTree AST.
    *
    * @param tree the AST to print
-   * @param contentTuples the set of content tuples associated with this AST
-   * @param outputFilePath the path to the output file
-   * @param nodeToSourceFile a mapping from nodes to source files
-   * @param contentTupleToSourceFile a mapping from content tuples to source files
+   * @param contentTuples the set of content tuples associated with this AST (and their conflicts)
+   * @param classRepresentatives the class representatives of the merge (which tell the revision
+   *     each node comes from)
+   * @param revisionSources the source file of each revision
+   * @return the printed source code, as read-only spans of the source files and new content (an
+   *     unchanged region of a source file is a single span)
    */
-  public static void print(
+  public static List<ByteBuffer> print(
       Tree tree,
-      Set<ContentTuple> contentTuples,
-      String outputFilePath,
-      Map<Tree, String> nodeToSourceFile,
-      Map<ContentTuple, String> contentTupleToSourceFile) {
+      ContentTupleSet contentTuples,
+      ClassRepresentatives classRepresentatives,
+      Map<Revision, MergePipeline.Source> revisionSources) {
     // TODO: current implementation assumes old and new content start at the same place. Need to
     // adjust for when they don't.
 
-    // Why is this an array?  Wouldn't a StringBuilder or StringBuffer suffice?
     // Why does this code manipulate bytes instead of characters?
-    // Create output buffer.
+    // Create output buffer. Splices refer to the source files (and new content), and are never
+    // copied: the output is handed out as views of them.
     // What is the invariant about the value of mergedBuffer?  That is, at every point in the code,
     // how much content has been copied into `mergedBuffer`?
-    var mergedBuffer = new ArrayList<Byte>();
+    var mergedBuffer = new PieceTable(2 * tree.getMetrics().size);
 
-    // Read from merged tree.
+    // Register the source files, so a revision's source ID is its ordinal.
+    for (var revision : Revision.values()) {
+      mergedBuffer.addSource(ByteBuffer.wrap(revisionSources.get(revision).content()));
+    }
+
+    // Read from merged tree (in pre-order).
     // If "node" must come from a merged tre, I would name it "mergedNode".
-    for (var node : tree.preOrder()) {
+    var pending = new ArrayDeque<Tree>();
+    pending.push(tree);
+    while (!pending.isEmpty()) {
+      var node = pending.pop();
+
+      // Unchanged subtrees are copied verbatim with their root, so skip their descendants.
+      if (!UnchangedSubtrees.isUnchanged(node)) {
+        for (int i = node.getChildren().size() - 1; i >= 0; i--) pending.push(node.getChild(i));
+      }
+
       // If node is a leaf and has content, use its content.
       if (node.isLeaf() && node.hasLabel()) {
         // Abstract this body into a method, to make the implementation of `print()` shorter and
         // easier to read.
         // Get content tuple for node.
-        var maybeContentTuple =
-            contentTuples.stream().filter(contentTuple -> contentTuple.node() == node).findFirst();
+        var contentTuple = contentTuples.contentOf(node);
 
         // Short-circuit if no content.
-        if (maybeContentTuple.isEmpty()) continue;
-
-        // Get content tuple.
-        var contentTuple = maybeContentTuple.get();
+        if (contentTuple == null) continue;
 
         // What does it mean to "Declare"?
         // Declare content as bytes.
         var contentBytes = contentTuple.content().getBytes();
 
         // Check for conflicts.
-        if (contentTuple.hardInconsistencyWith() != null) {
-          var conflict = contentTuple.hardInconsistencyWith();
-
+        var conflict = contentTuples.hardInconsistencyOf(contentTuple);
+        if (conflict != null) {
           // Update content string to show conflict.
           contentBytes =
               ("<<<<<<< "
-                      + contentTupleToSourceFile.get(contentTuple)
+                      + sourceNameOf(contentTuple, contentTuples, revisionSources)
                       + contentTuple.content()
                       + " ======= "
                       + conflict.content()
                       + " >>>>>>> "
-                      + contentTupleToSourceFile.get(conflict))
+                      + sourceNameOf(conflict, contentTuples, revisionSources))
                   .getBytes();
         }
 
@@ -84,15 +95,14 @@ public class Printer {
         // of merge is always the i'th character of the file, by doing replacements like such:  to
         // replace characters 22 through 25, set those array elements to "", then do the insertion
         // all at character 22.
-        mergedBuffer.subList(node.getPos(), node.getPos() + node.getLength()).clear();
+        mergedBuffer.delete(node.getPos(), node.getPos() + node.getLength());
 
         // Insert new content.
-        // Minor: inserting into the middle of a String is very inefficient.  A StringBuilder or
-        // StringBuffer can be efficiently inserted into the middle of.  But perhaps you don't need
-        // to do any inserting into the middle, only appending to the end.
-        for (int i = 0; i < contentBytes.length; i++) {
-          mergedBuffer.add(node.getPos() + i, contentBytes[i]);
-        }
+        mergedBuffer.insert(
+            node.getPos(),
+            mergedBuffer.addSource(ByteBuffer.wrap(contentBytes)),
+            0,
+            contentBytes.length);
 
         // Skip to next node.
         continue;
@@ -101,62 +111,48 @@ public class Printer {
       // What is a "structure"?
       // TODO: need to identify what a structure is replacing. Adding new structures in a list won't
       // work though (e.g. adding new parameters to a method because the commas won't be generated).
-      // Otherwise, read from file.
-      try {
-        // Open file to read from.
-        var file = new RandomAccessFile(nodeToSourceFile.get(node), "r");
-        file.seek(node.getPos());
-
-        // Insertion index (changes to replacing node if there was a previous node).
-        var insertionIndex = node.getPos();
-
-        // Is the replaced node in the left?  In the right?
-        // Get node this is replacing.
-        var replacingNode = (Tree) node.getMetadata("replacing");
-
-        // Delete old content if there is a node to be replaced.
-        if (replacingNode != null) {
-          mergedBuffer
-              .subList(replacingNode.getPos(), replacingNode.getPos() + replacingNode.getLength())
-              .clear();
-
-          // Update insertion index to be replacing node's position.
-          insertionIndex = replacingNode.getPos();
-        }
+      // Otherwise, read from the source file.
+      final var sourceId = classRepresentatives.revisionOf(node).ordinal();
 
-        // Get new content.
-        var newContent = new byte[node.getLength()];
-        file.read(newContent);
+      // Insertion index (changes to replacing node if there was a previous node).
+      var insertionIndex = node.getPos();
 
-        // Insert into buffer.
-        for (int i = 0; i < newContent.length; i++) {
-          mergedBuffer.add(insertionIndex + i, newContent[i]);
-        }
+      // Is the replaced node in the left?  In the right?
+      // Get node this is replacing.
+      var replacingNode = (Tree) node.getMetadata("replacing");
 
-        // Close file.
-        file.close();
-      } catch (IOException e) {
-        throw new RuntimeException(e);
+      // Delete old content if there is a node to be replaced.
+      if (replacingNode != null) {
+        mergedBuffer.delete(
+            replacingNode.getPos(), replacingNode.getPos() + replacingNode.getLength());
+
+        // Update insertion index to be replacing node's position.
+        insertionIndex = replacingNode.getPos();
       }
+
+      // Insert new content into buffer (zero-padded past the end of the file, like a file read).
+      mergedBuffer.insert(insertionIndex, sourceId, node.getPos(), node.getLength());
     }
 
     // How do null bytes arise in the buffer?
-    // Remove null bytes from buffer.
-    var cleanedBufferOutputStream = new ByteArrayOutputStream();
-    for (var b : mergedBuffer) {
-      if (b != 0) cleanedBufferOutputStream.write(b);
-    }
+    // Read out the buffer without null bytes.
+    return mergedBuffer.toSpansWithoutNullBytes();
+  }
 
-    // Write to file.
-    System.out.println();
-    System.out.println("Merged result:");
-    System.out.println(cleanedBufferOutputStream);
-    try {
-      var mergedFile = new FileOutputStream(outputFilePath);
-      mergedFile.write(cleanedBufferOutputStream.toByteArray());
-      mergedFile.close();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  /**
+   * Get the name of the source file a content tuple came from.
+   *
+   * @param contentTuple the content tuple
+   * @param contentTuples the content tuple set tracking the content tuple's revisions
+   * @param revisionSources the source file of each revision
+   * @return the name of the source file of the last revision with the content tuple
+   */
+  private static String sourceNameOf(
+      ContentTuple contentTuple,
+      ContentTupleSet contentTuples,
+      Map<Revision, MergePipeline.Source> revisionSources) {
+    final var source =
+        revisionSources.get(Revision.lastIn(contentTuples.revisionsOf(contentTuple)));
+    return source == null ? null : source.name();
   }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * File-level trivial merges.
+ *
+ * <p>If one branch did not change the base file, or both branches made the same change, the merge
+ * result is one of the inputs. This is checked on the raw bytes before any parsing.
+ *
+ * @author Kenneth Yang
+ */
+public class TrivialMerge {
+  /**
+   * The kind of trivial merge.
+   *
+   * <p>Each kind names the branch whose content is the merge result.
+   */
+  public enum Kind {
+    /** Left is unchanged from base, so the result is right. */
+    LEFT_UNCHANGED,
+    /** Right is unchanged from base, so the result is left. */
+    RIGHT_UNCHANGED,
+    /** Left and right made the same change, so the result is left. */
+    SAME_CHANGES
+  }
+
+  /**
+   * A trivial merge result.
+   *
+   * @param kind the kind of trivial merge
+   * @param merged the merged file content
+   */
+  public record Result(Kind kind, byte[] merged) {}
+
+  /**
+   * Attempt a trivial merge of three file contents.
+   *
+   * @param base the base file content
+   * @param left the left file content
+   * @param right the right file content
+   * @return the trivial merge result, or empty if an AST merge is needed
+   */
+  public static Optional<Result> attempt(byte[] base, byte[] left, byte[] right) {
+    final Result result;
+    if (Arrays.equals(left, base)) {
+      result = new Result(Kind.LEFT_UNCHANGED, right);
+    } else if (Arrays.equals(right, base)) {
+      result = new Result(Kind.RIGHT_UNCHANGED, left);
+    } else if (Arrays.equals(left, right)) {
+      result = new Result(Kind.SAME_CHANGES, left);
+    } else {
+      return Optional.empty();
+    }
+
+    return Optional.of(result);
+  }
+
+  /**
+   * Describe how often merges were trivial.
+   *
+   * @param hits the number of trivial merges
+   * @param attempts the number of merges
+   * @return the trivial merge hit rate, formatted for printing
+   */
+  public static String hitRate(long hits, long attempts) {
+    return String.format(
+        "%d/%d (%.1f%%)", hits, attempts, attempts == 0 ? 0.0 : 100.0 * hits / attempts);
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * A content-addressed, size-bounded cache of byte blobs on disk.
+ *
+ * <p>Each blob is a file named by its key in the cache directory. Blobs are read through
+ * memory-mapped buffers, and reading a blob marks it as recently used. When the directory grows
+ * past its size bound, the least recently used blobs are deleted.
+ *
+ * <p>The cache is best-effort: I/O errors are treated as misses, so a broken cache never fails a
+ * merge. Blobs are written to a temporary file and moved into place, so concurrent drivers never
+ * see partial blobs.
+ *
+ * @author Kenneth Yang
+ */
+public class BlobCache {
+  // region Constants.
+  /** Name of the cache directory inside the Git directory. */
+  public static final String DIRECTORY_NAME = "ast-merge-cache";
+
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  /** Prefix of the line of a {@code .git} file that points to the Git directory. */
+  private static final String GIT_DIRECTORY_PREFIX = "gitdir:";
+
+  // endregion
+
+  // region Fields.
+  private final Path directory;
+  private final long maxBytes;
+
+  // endregion
+
+  /**
+   * Create a cache in a directory.
+   *
+   * @param directory the cache directory (created on first write), or null to disable the cache
+   * @param maxBytes the total size of blobs to keep
+   */
+  public BlobCache(Path directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Find the cache directory of the current Git repository.
+   *
+   * <p>In worktrees and submodules, {@code .git} is a file pointing to the Git directory, which is
+   * followed.
+   *
+   * @param name the name of the cache within the cache directory
+   * @return the cache directory, or null if the working directory is not in a Git repository
+   */
+  public static Path gitCacheDirectory(String name) {
+    final var gitDirectory = System.getenv("GIT_DIR");
+    final var gitPath = resolveGitDirectory(Path.of(gitDirectory == null ? ".git" : gitDirectory));
+    return gitPath == null ? null : gitPath.resolve(DIRECTORY_NAME).resolve(name);
+  }
+
+  /**
+   * Resolve a {@code .git} directory or {@code .git} file.
+   *
+   * @param gitPath the path of the Git directory, or of a file with a {@code gitdir: <path>} line
+   *     (relative paths are relative to the file's directory)
+   * @return the Git directory, or null if there is none
+   */
+  private static Path resolveGitDirectory(Path gitPath) {
+    if (Files.isDirectory(gitPath)) return gitPath;
+    if (!Files.isRegularFile(gitPath)) return null;
+
+    try {
+      for (final var line : Files.readAllLines(gitPath)) {
+        if (!line.startsWith(GIT_DIRECTORY_PREFIX)) continue;
+
+        final var target = Path.of(line.substring(GIT_DIRECTORY_PREFIX.length()).strip());
+        final var gitDirectory = gitPath.toAbsolutePath().getParent().resolve(target).normalize();
+        return Files.isDirectory(gitDirectory) ? gitDirectory : null;
+      }
+    } catch (IOException | InvalidPathException e) {
+      // Not a Git file.
+    }
+    return null;
+  }
+
+  /**
+   * Compute the cache key of some content.
+   *
+   * @param parts the parts of the content (hashed in order)
+   * @return the hex SHA-256 hash of the content
+   */
+  public static String keyOf(byte[]... parts) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e);
+    }
+    for (var part : parts) digest.update(part);
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  // region Cache methods.
+
+  /**
+   * Read a blob.
+   *
+   * @param key the key of the blob
+   * @return a read-only memory-mapped buffer of the blob, or empty if it is not cached
+   */
+  public Optional<ByteBuffer> read(String key) {
+    if (directory == null) return Optional.empty();
+
+    final var path = directory.resolve(key);
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      // Mark as recently used.
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+      return Optional.of(buffer);
+    } catch (IOException e) {
+      // Missing or unreadable blobs are misses.
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Write a blob, evicting least recently used blobs if the cache is over its size bound.
+   *
+   * @param key the key of the blob
+   * @param blob the content of the blob
+   */
+  public void write(String key, byte[] blob) {
+    if (directory == null || blob.length > maxBytes) return;
+
+    try {
+      Files.createDirectories(directory);
+
+      // Write to a temporary file and move it into place.
+      final var temporaryPath = Files.createTempFile(directory, key, TEMPORARY_SUFFIX);
+      try {
+        Files.write(temporaryPath, blob);
+        Files.move(
+            temporaryPath,
+            directory.resolve(key),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temporaryPath);
+      }
+
+      evict();
+    } catch (IOException e) {
+      // The cache is best-effort.
+    }
+  }
+
+  /**
+   * Invalidate a blob (for example, one that could not be decoded).
+   *
+   * @param key the key of the blob
+   */
+  public void invalidate(String key) {
+    if (directory == null) return;
+
+    try {
+      Files.deleteIfExists(directory.resolve(key));
+    } catch (IOException e) {
+      // The cache is best-effort.
+    }
+  }
+
+  // endregion
+
+  // region Eviction helpers.
+
+  /** A blob file with the attributes used for eviction. */
+  private record BlobFile(Path path, long size, FileTime lastUsed) {}
+
+  /**
+   * Delete least recently used blobs until the cache is within its size bound.
+   *
+   * @throws IOException if the cache directory cannot be listed
+   */
+  private void evict() throws IOException {
+    var blobFiles = new ArrayList<BlobFile>();
+    var totalBytes = 0L;
+    try (var paths = Files.list(directory)) {
+      for (var path : (Iterable<Path>) paths::iterator) {
+        if (path.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) continue;
+
+        try {
+          final var blobFile =
+              new BlobFile(path, Files.size(path), Files.getLastModifiedTime(path));
+          blobFiles.add(blobFile);
+          totalBytes += blobFile.size();
+        } catch (NoSuchFileException e) {
+          // Evicted by another driver.
+        }
+      }
+    }
+    if (totalBytes <= maxBytes) return;
+
+    blobFiles.sort(Comparator.comparing(BlobFile::lastUsed));
+    for (var blobFile : blobFiles) {
+      if (totalBytes <= maxBytes) break;
+
+      Files.deleteIfExists(blobFile.path());
+      totalBytes -= blobFile.size();
+    }
+  }
+  // endregion
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A persistent cache of tree matchings.
+ *
+ * <p>Matchings are stored in a {@link BlobCache} as arrays of (source, destination) preorder index
+ * pairs, keyed by the hashes of the matched blobs and the matcher configuration. Preorder indexes
+ * are the same whether a tree was parsed or loaded from the {@link ParseCache}, so a cached
+ * matching can be mapped back onto freshly loaded trees.
+ *
+ * @author Kenneth Yang
+ */
+public class MatchCache {
+  // region Constants.
+  /** Name of the match cache within the Git cache directory. */
+  private static final String NAME = "matches";
+
+  /** Default total size of cached matchings. */
+  private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** Salt for cache keys, changed whenever the matchers or encoding change. */
+  private static final String KEY_SALT = "gumtree-4.0.0-beta2/match-codec-1\n";
+
+  // endregion
+
+  // region Fields.
+  private final BlobCache blobs;
+
+  // endregion
+
+  /**
+   * Create a match cache.
+   *
+   * @param blobs the blob cache to store matchings in
+   */
+  public MatchCache(BlobCache blobs) {
+    this.blobs = blobs;
+  }
+
+  /**
+   * Open the match cache of the current Git repository.
+   *
+   * @return the match cache (disabled if the working directory is not in a Git repository)
+   */
+  public static MatchCache inGitDirectory() {
+    return new MatchCache(new BlobCache(BlobCache.gitCacheDirectory(NAME), DEFAULT_MAX_BYTES));
+  }
+
+  /**
+   * Compute the cache key of a matching.
+   *
+   * @param configuration the matcher configuration (for example, the matcher class name)
+   * @param blobs the source code of every tree the matching depends on
+   * @return the cache key
+   */
+  public static String keyOf(String configuration, byte[]... blobs) {
+    var parts = new byte[blobs.length + 1][];
+    parts[0] = (KEY_SALT + configuration + "\n").getBytes(StandardCharsets.UTF_8);
+    for (var i = 0; i < blobs.length; i++) {
+      parts[i + 1] = BlobCache.keyOf(blobs[i]).getBytes(StandardCharsets.UTF_8);
+    }
+    return BlobCache.keyOf(parts);
+  }
+
+  /**
+   * Match two trees, loading the matching from the cache if it was computed before.
+   *
+   * @param key the cache key of the matching (see {@link #keyOf(String, byte[]...)})
+   * @param src the source tree
+   * @param dst the destination tree
+   * @param matching computes the matching on a miss
+   * @return the matching from the source tree to the destination tree
+   */
+  public MappingStore match(String key, Tree src, Tree dst, Supplier<MappingStore> matching) {
+    // Load the matching on a hit.
+    final var cached = blobs.read(key);
+    if (cached.isPresent()) {
+      try {
+        return decode(cached.get(), src, dst);
+      } catch (IllegalArgumentException e) {
+        blobs.invalidate(key);
+      }
+    }
+
+    // Match and cache the matching on a miss.
+    final var mappings = matching.get();
+    blobs.write(key, encode(mappings, src, dst));
+    return mappings;
+  }
+
+  // region Codec helpers.
+
+  /**
+   * Encode a matching as preorder index pairs.
+   *
+   * @param mappings the matching
+   * @param src the source tree
+   * @param dst the destination tree
+   * @return the encoded matching
+   */
+  private static byte[] encode(MappingStore mappings, Tree src, Tree dst) {
+    final var srcIndexes = preorderIndexes(src);
+    final var dstIndexes = preorderIndexes(dst);
+
+    var output = new ByteArrayOutputStream(mappings.size() * 4);
+    TreeCodec.writeVarint(output, srcIndexes.size());
+    TreeCodec.writeVarint(output, dstIndexes.size());
+    TreeCodec.writeVarint(output, mappings.size());
+    for (var mapping : mappings) {
+      TreeCodec.writeVarint(output, srcIndexes.get(mapping.first));
+      TreeCodec.writeVarint(output, dstIndexes.get(mapping.second));
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Decode a matching from preorder index pairs.
+   *
+   * @param input the encoded matching
+   * @param src the source tree
+   * @param dst the destination tree
+   * @return the matching
+   * @throws IllegalArgumentException if the input is not a valid matching of the trees
+   */
+  private static MappingStore decode(ByteBuffer input, Tree src, Tree dst) {
+    final var srcNodes = preorderNodes(src);
+    final var dstNodes = preorderNodes(dst);
+    try {
+      if (TreeCodec.readVarint(input) != srcNodes.size()
+          || TreeCodec.readVarint(input) != dstNodes.size()) {
+        throw new IllegalArgumentException("Cached matching is for different trees.");
+      }
+
+      var mappings = new MappingStore(src, dst);
+      final var mappingCount = TreeCodec.readVarint(input);
+      for (var i = 0; i < mappingCount; i++) {
+        final var srcNode = srcNodes.get(TreeCodec.readVarint(input));
+        mappings.addMapping(srcNode, dstNodes.get(TreeCodec.readVarint(input)));
+      }
+      return mappings;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Cached matching is malformed.", e);
+    }
+  }
+
+  /**
+   * Number the nodes of a tree in preorder.
+   *
+   * @param root the root of the tree
+   * @return the preorder index of every node
+   */
+  private static IdentityHashMap<Tree, Integer> preorderIndexes(Tree root) {
+    var indexes = new IdentityHashMap<Tree, Integer>();
+    for (var node : root.preOrder()) indexes.put(node, indexes.size());
+    return indexes;
+  }
+
+  /**
+   * List the nodes of a tree in preorder.
+   *
+   * @param root the root of the tree
+   * @return the nodes by preorder index
+   */
+  private static ArrayList<Tree> preorderNodes(Tree root) {
+    var nodes = new ArrayList<Tree>();
+    root.preOrder().forEach(nodes::add);
+    return nodes;
+  }
+  // endregion
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import com.github.gumtreediff.gen.javaparser.JavaParserGenerator;
+import com.github.gumtreediff.tree.Tree;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A persistent cache of parsed Java source files.
+ *
+ * <p>Trees are stored in a {@link BlobCache} (encoded by {@link TreeCodec}) keyed by the hash of
+ * the source bytes, so a blob that was parsed by an earlier merge (for example, the same base
+ * during a rebase) is loaded without running JavaParser.
+ *
+ * @author Kenneth Yang
+ */
+public class ParseCache {
+  // region Constants.
+  /** Name of the parse cache within the Git cache directory. */
+  private static final String NAME = "trees";
+
+  /** Default total size of cached trees. */
+  private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  /** Salt for cache keys, changed whenever the parser or encoding changes. */
+  private static final byte[] KEY_SALT =
+      "gumtree-4.0.0-beta2/javaparser/tree-codec-1\n".getBytes(StandardCharsets.UTF_8);
+
+  // endregion
+
+  // region Fields.
+  private final BlobCache blobs;
+
+  // endregion
+
+  /**
+   * Create a parse cache.
+   *
+   * @param blobs the blob cache to store trees in
+   */
+  public ParseCache(BlobCache blobs) {
+    this.blobs = blobs;
+  }
+
+  /**
+   * Open the parse cache of the current Git repository.
+   *
+   * @return the parse cache (disabled if the working directory is not in a Git repository)
+   */
+  public static ParseCache inGitDirectory() {
+    return new ParseCache(new BlobCache(BlobCache.gitCacheDirectory(NAME), DEFAULT_MAX_BYTES));
+  }
+
+  /**
+   * Parse Java source code, loading the tree from the cache if it was parsed before.
+   *
+   * <p>Parses hold the {@link Types#parsingLock() parsing lock}, so they run concurrently unless
+   * JavaParser's node types could not be registered up front.
+   *
+   * @param source the source code bytes (UTF-8)
+   * @return the root of the parsed tree
+   * @throws IOException if the source code cannot be parsed
+   */
+  public Tree parse(byte[] source) throws IOException {
+    final var key = BlobCache.keyOf(KEY_SALT, source);
+
+    // Load the tree on a hit.
+    final var cached = blobs.read(key);
+    if (cached.isPresent()) {
+      try {
+        return TreeCodec.decode(cached.get());
+      } catch (IllegalArgumentException e) {
+        blobs.invalidate(key);
+      }
+    }
+
+    // Parse and cache the tree on a miss.
+    final Tree tree;
+    final var parsingLock = Types.parsingLock();
+    parsingLock.lock();
+    try {
+      tree =
+          new JavaParserGenerator()
+              .generateFrom()
+              .string(new String(source, StandardCharsets.UTF_8))
+              .getRoot();
+    } finally {
+      parsingLock.unlock();
+    }
+    blobs.write(key, TreeCodec.encode(tree));
+    return tree;
+  }
+}
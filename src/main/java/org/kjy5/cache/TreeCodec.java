@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import com.github.gumtreediff.tree.DefaultTree;
+import com.github.gumtreediff.tree.Tree;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A compact binary encoding of GumTree trees.
+ *
+ * <p>Type names and labels are written once to a string table. Nodes follow in preorder, each as
+ * its type index, label index, position, length, and child count. All integers are unsigned
+ * variable-length (LEB128) encoded.
+ *
+ * @author Kenneth Yang
+ */
+public class TreeCodec {
+  // region Constants.
+  /** Magic number and format version at the start of every encoded tree. */
+  private static final int MAGIC = 0x41535401;
+
+  // endregion
+
+  /**
+   * Encode a tree.
+   *
+   * @param root the root of the tree to encode
+   * @return the encoded tree
+   */
+  public static byte[] encode(Tree root) {
+    // Number the strings.
+    var stringIndexes = new HashMap<String, Integer>();
+    var strings = new ArrayList<String>();
+    var nodeCount = 0;
+    for (var node : root.preOrder()) {
+      for (var string : new String[] {node.getType().name, node.getLabel()}) {
+        if (stringIndexes.putIfAbsent(string, strings.size()) == null) strings.add(string);
+      }
+      nodeCount++;
+    }
+
+    var output = new ByteArrayOutputStream(nodeCount * 8);
+    writeInt(output, MAGIC);
+
+    // Write the string table.
+    writeVarint(output, strings.size());
+    for (var string : strings) {
+      final var bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeVarint(output, bytes.length);
+      output.writeBytes(bytes);
+    }
+
+    // Write the nodes.
+    writeVarint(output, nodeCount);
+    for (var node : root.preOrder()) {
+      writeVarint(output, stringIndexes.get(node.getType().name));
+      writeVarint(output, stringIndexes.get(node.getLabel()));
+      writeVarint(output, node.getPos());
+      writeVarint(output, node.getLength());
+      writeVarint(output, node.getChildren().size());
+    }
+
+    return output.toByteArray();
+  }
+
+  /**
+   * Decode a tree.
+   *
+   * @param input the encoded tree
+   * @return the root of the decoded tree
+   * @throws IllegalArgumentException if the input is not a valid encoded tree
+   */
+  public static Tree decode(ByteBuffer input) {
+    try {
+      if (input.getInt() != MAGIC) throw new IllegalArgumentException("Unknown tree format.");
+
+      // Read the string table.
+      final var strings = new String[readVarint(input)];
+      for (var i = 0; i < strings.length; i++) {
+        final var bytes = new byte[readVarint(input)];
+        input.get(bytes);
+        strings[i] = bytes.length == 0 ? Tree.NO_LABEL : new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      // Read the nodes, keeping a stack of ancestors still waiting for children.
+      final var nodeCount = readVarint(input);
+      var ancestors = new Tree[16];
+      var remainingChildren = new int[16];
+      var depth = 0;
+      Tree root = null;
+      for (var i = 0; i < nodeCount; i++) {
+        final var type = Types.of(strings[readVarint(input)]);
+        final var node = new DefaultTree(type, strings[readVarint(input)]);
+        node.setPos(readVarint(input));
+        node.setLength(readVarint(input));
+        final var childCount = readVarint(input);
+
+        // Attach to the nearest ancestor still waiting for children.
+        while (depth > 0 && remainingChildren[depth - 1] == 0) depth--;
+        if (depth == 0) {
+          if (root != null) throw new IllegalArgumentException("Encoded tree has several roots.");
+          root = node;
+        } else {
+          ancestors[depth - 1].addChild(node);
+          remainingChildren[depth - 1]--;
+        }
+
+        if (childCount > 0) {
+          if (depth == ancestors.length) {
+            ancestors = Arrays.copyOf(ancestors, depth * 2);
+            remainingChildren = Arrays.copyOf(remainingChildren, depth * 2);
+          }
+          ancestors[depth] = node;
+          remainingChildren[depth] = childCount;
+          depth++;
+        }
+      }
+
+      // Every ancestor must have received all of its children.
+      while (depth > 0 && remainingChildren[depth - 1] == 0) depth--;
+      if (root == null || depth > 0) {
+        throw new IllegalArgumentException("Encoded tree is truncated.");
+      }
+      return root;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("Encoded tree is malformed.", e);
+    }
+  }
+
+  // region Integer helpers.
+
+  /**
+   * Write a big-endian 32-bit integer.
+   *
+   * @param output the output to write to
+   * @param value the value to write
+   */
+  private static void writeInt(ByteArrayOutputStream output, int value) {
+    output.write(value >>> 24);
+    output.write(value >>> 16);
+    output.write(value >>> 8);
+    output.write(value);
+  }
+
+  /**
+   * Write an unsigned variable-length integer.
+   *
+   * @param output the output to write to
+   * @param value the (non-negative) value to write
+   */
+  static void writeVarint(ByteArrayOutputStream output, int value) {
+    while ((value & ~0x7f) != 0) {
+      output.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    output.write(value);
+  }
+
+  /**
+   * Read an unsigned variable-length integer.
+   *
+   * @param input the input to read from
+   * @return the value read
+   */
+  static int readVarint(ByteBuffer input) {
+    var value = 0;
+    for (var shift = 0; shift < 32; shift += 7) {
+      final var b = input.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) return value;
+    }
+    throw new IllegalArgumentException("Variable-length integer is too long.");
+  }
+  // endregion
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import com.github.gumtreediff.gen.javaparser.JavaParserGenerator;
+import com.github.gumtreediff.tree.Type;
+import com.github.gumtreediff.tree.TypeSet;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe access to GumTree's process-wide registry of node types.
+ *
+ * <p>{@link TypeSet} interns types in a plain hash map, so creating a type while another thread
+ * looks one up is a data race. Types are therefore only created through {@link #of(String)},
+ * holding the registry's write lock. JavaParserGenerator looks types up itself while parsing, so
+ * parsers hold {@link #parsingLock()} instead: a read lock, letting parses run concurrently, once
+ * every type a parse can create has been registered up front. JavaParserGenerator names types after
+ * JavaParser's node classes, which are all registered before the first parse. If that fails (for
+ * example, because a parser version names types differently), the parsing lock is the write lock
+ * and parses run one at a time.
+ *
+ * @author Kenneth Yang
+ */
+public class Types {
+  // region Constants.
+  /** JavaParser's metamodel, listing every node class. */
+  private static final String META_MODEL = "com.github.javaparser.metamodel.JavaParserMetaModel";
+
+  /** Base class of the metamodels of node classes. */
+  private static final String NODE_META_MODEL = "com.github.javaparser.metamodel.BaseNodeMetaModel";
+
+  /** Source parsed once to check that parsing only creates registered types. */
+  private static final String WARM_UP_SOURCE =
+      "class A<T> { @Deprecated private int f(T t) { return t == null ? -1 : 1 + 2; } }";
+
+  // endregion
+
+  // region Fields.
+  /** Lock guarding creation of types in the registry. */
+  private static final ReentrantReadWriteLock REGISTRY_LOCK = new ReentrantReadWriteLock();
+
+  /** Types created so far, looked up without touching the registry. */
+  private static final ConcurrentHashMap<String, Type> TYPES = new ConcurrentHashMap<>();
+
+  // endregion
+
+  /**
+   * Get or create a node type.
+   *
+   * @param name the name of the type
+   * @return the type, the same instance for every call with the same name
+   */
+  public static Type of(String name) {
+    final var type = TYPES.get(name);
+    if (type != null) return type;
+
+    REGISTRY_LOCK.writeLock().lock();
+    try {
+      return TYPES.computeIfAbsent(name, TypeSet::type);
+    } finally {
+      REGISTRY_LOCK.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Get the lock to hold while parsing, registering JavaParser's node types on the first call.
+   *
+   * @return the read lock if parses may run concurrently, otherwise the write lock
+   */
+  static Lock parsingLock() {
+    return ParserTypes.REGISTERED ? REGISTRY_LOCK.readLock() : REGISTRY_LOCK.writeLock();
+  }
+
+  /** JavaParser's node types, registered when this class is first used. */
+  private static final class ParserTypes {
+    /** Whether every type a parse can create is registered. */
+    static final boolean REGISTERED = register();
+
+    /**
+     * Register a type for every JavaParser node class, then check on a parse that this covers the
+     * types JavaParserGenerator creates.
+     *
+     * @return whether parses only look up registered types
+     */
+    private static boolean register() {
+      try {
+        // The metamodel is read reflectively as JavaParser is only a runtime dependency.
+        final var nodeMetaModels =
+            (List<?>) Class.forName(META_MODEL).getMethod("getNodeMetaModels").invoke(null);
+        final var typeName = Class.forName(NODE_META_MODEL).getMethod("getTypeName");
+        for (final var nodeMetaModel : nodeMetaModels) of((String) typeName.invoke(nodeMetaModel));
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        return false;
+      }
+
+      REGISTRY_LOCK.writeLock().lock();
+      try {
+        for (final var node :
+            new JavaParserGenerator().generateFrom().string(WARM_UP_SOURCE).getRoot().preOrder()) {
+          if (TYPES.get(node.getType().name) != node.getType()) return false;
+        }
+        return true;
+      } catch (IOException e) {
+        return false;
+      } finally {
+        REGISTRY_LOCK.writeLock().unlock();
+      }
+    }
+  }
+}
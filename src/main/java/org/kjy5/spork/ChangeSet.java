@@ -7,12 +7,11 @@ import com.github.gumtreediff.tree.DefaultTree;
 import com.github.gumtreediff.tree.ImmutableTree;
 import com.github.gumtreediff.tree.Tree;
 import com.github.gumtreediff.tree.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Set;
+import org.kjy5.cache.Types;
 
 /**
  * A Spork change set.
@@ -24,131 +23,112 @@ import java.util.Set;
  * @see org.kjy5.spork.ContentTuple
  * @author Kenneth Yang
  */
-public record ChangeSet(Set<Pcs> pcsSet, Set<ContentTuple> contentTupleSet) {
+public record ChangeSet(PcsSet pcsSet, ContentTupleSet contentTupleSet) {
+  // region Constants.
+  /** Type of the virtual node marking the root of an AST. */
+  private static final Type VIRTUAL_ROOT = Types.of("virtualRoot");
+
+  /** Type of the virtual node marking the start of a child list. */
+  private static final Type VIRTUAL_CHILD_LIST_START = Types.of("virtualChildListStart");
+
+  /** Type of the virtual node marking the end of a child list. */
+  private static final Type VIRTUAL_CHILD_LIST_END = Types.of("virtualChildListEnd");
+
+  // endregion
+
   // region Factory.
   /**
    * Create a Spork change set from a tree.
    *
    * <p>Nodes from the tree are converted to their class representatives so that a common node is
    * used between matching branches. Virtual nodes are added to mark the root of the tree and the
-   * start and end of child lists.
+   * start and end of child lists. Subtrees that are unchanged in all three branches (see {@link
+   * UnchangedSubtrees}) are treated as opaque leaves.
+   *
+   * <p>The PCSs and content tuples are emitted in a single breadth-first traversal into sets
+   * pre-sized from the tree size, and every node is numbered once.
    *
    * @param tree the tree to create the change set from
    * @param nodeToClassRepresentatives the mapping of nodes to class representatives
+   * @param nodeIds the node numbering shared by the change sets of a merge
    */
   public static ChangeSet from(
       Tree tree,
       Map<Tree, Tree> nodeToClassRepresentatives,
+      NodeIds nodeIds,
       Map<Tree, Tree> virtualRootMapping,
-      Map<Tree, String> nodeToSourceFileMapping,
-      Map<ContentTuple, String> contentTupleToSourceFileMapping,
       Map<Tree, ChildListVirtualNodes> childListVirtualNodesMapping) {
-    // Initialize an empty content tuple set.
-    var wipContentTupleSet = new LinkedHashSet<ContentTuple>();
+    // Every node has one PCS per child plus one ending its child list (2n - 1), and the virtual
+    // root adds two more.
+    final var treeSize = tree.getMetrics().size;
+    var wipPcsSet = new PcsSet(nodeIds, 2 * treeSize + 1);
+    var wipContentTupleSet = new ContentTupleSet(treeSize);
 
     // Build root of PCS set.
     final var rootClassRepresentative = nodeToClassRepresentatives.get(tree);
+    final var virtualRoot =
+        virtualRootMapping.computeIfAbsent(rootClassRepresentative, key -> makeVirtualRoot());
+    final var virtualRootChildListVirtualNodes =
+        childListVirtualNodesMapping.computeIfAbsent(
+            virtualRoot, key -> makeChildListVirtualNodes());
+
+    final var packing = nodeIds.packedPcs();
+    final var virtualRootId = nodeIds.idOf(virtualRoot);
+    final var rootId = nodeIds.idOf(rootClassRepresentative);
+    wipPcsSet.add(
+        packing.pack(
+            virtualRootId,
+            nodeIds.idOf(virtualRootChildListVirtualNodes.childListStart()),
+            rootId));
+    wipPcsSet.add(
+        packing.pack(
+            virtualRootId, rootId, nodeIds.idOf(virtualRootChildListVirtualNodes.childListEnd())));
+
+    // Traverse the tree breadth-first and build (without descending into unchanged subtrees).
+    var pending = new ArrayDeque<Tree>();
+    pending.add(tree);
+    while (!pending.isEmpty()) {
+      final var node = pending.poll();
+
+      // Get class representative.
+      final var classRepresentative = nodeToClassRepresentatives.get(node);
+      final var classRepresentativeId = nodeIds.idOf(classRepresentative);
+
+      // Add content tuple (if it has content).
+      if (node.hasLabel()) {
+        wipContentTupleSet.add(new ContentTuple(classRepresentative, node.getLabel()));
+      }
 
-    // Create the virtual root for this PCS set.
-    final Tree virtualRoot;
-    if (virtualRootMapping.containsKey(rootClassRepresentative)) {
-      virtualRoot = virtualRootMapping.get(rootClassRepresentative);
-    } else {
-      virtualRoot = makeVirtualRoot();
-      virtualRootMapping.put(rootClassRepresentative, virtualRoot);
-    }
+      // Get or create child list virtual nodes.
+      final var childListVirtualNodes =
+          childListVirtualNodesMapping.computeIfAbsent(
+              classRepresentative, key -> makeChildListVirtualNodes());
+      final var childListStartId = nodeIds.idOf(childListVirtualNodes.childListStart());
+      final var childListEndId = nodeIds.idOf(childListVirtualNodes.childListEnd());
+
+      // Short-circuit if classRepresentative is leaf (or an opaque unchanged subtree).
+      final var children = node.getChildren();
+      if (children.isEmpty() || UnchangedSubtrees.isUnchanged(node)) {
+        wipPcsSet.add(packing.pack(classRepresentativeId, childListStartId, childListEndId));
+        continue;
+      }
 
-    final ChildListVirtualNodes virtualRootChildListVirtualNodes;
-    if (childListVirtualNodesMapping.containsKey(virtualRoot)) {
-      virtualRootChildListVirtualNodes = childListVirtualNodesMapping.get(virtualRoot);
-    } else {
-      virtualRootChildListVirtualNodes =
-          new ChildListVirtualNodes(makeVirtualChildListStart(), makeVirtualChildListEnd());
-      childListVirtualNodesMapping.put(virtualRoot, virtualRootChildListVirtualNodes);
-    }
+      // TODO: Check later if virtual classRepresentatives are needed to separate children
+      // (i.e. parameters, thrown exceptions).
 
-    var wipPcsSet =
-        new LinkedHashSet<>(
-            Arrays.asList(
-                new Pcs(
-                    virtualRoot,
-                    virtualRootChildListVirtualNodes.childListStart(),
-                    rootClassRepresentative),
-                new Pcs(
-                    virtualRoot,
-                    rootClassRepresentative,
-                    virtualRootChildListVirtualNodes.childListEnd())));
-
-    // Traverse the tree and build.
-    tree.breadthFirst()
-        .forEach(
-            node -> {
-              // Get class representative.
-              var classRepresentative = nodeToClassRepresentatives.get(node);
-
-              // Add content tuple (if it has content).
-              if (node.hasLabel()) {
-                var contentTuple = new ContentTuple(classRepresentative, node.getLabel(), null);
-
-                // Add to set.
-                wipContentTupleSet.add(contentTuple);
-
-                // Add to source file mapping.
-                contentTupleToSourceFileMapping.put(
-                    contentTuple, nodeToSourceFileMapping.get(node));
-              }
-
-              // Get or create child list virtual nodes.
-              final ChildListVirtualNodes childListVirtualNodes;
-              if (childListVirtualNodesMapping.containsKey(classRepresentative)) {
-                childListVirtualNodes = childListVirtualNodesMapping.get(classRepresentative);
-              } else {
-                childListVirtualNodes =
-                    new ChildListVirtualNodes(
-                        makeVirtualChildListStart(), makeVirtualChildListEnd());
-                childListVirtualNodesMapping.put(classRepresentative, childListVirtualNodes);
-              }
-
-              // Short-circuit if classRepresentative is leaf.
-              if (node.getChildren().isEmpty()) {
-                wipPcsSet.add(
-                    new Pcs(
-                        classRepresentative,
-                        childListVirtualNodes.childListStart(),
-                        childListVirtualNodes.childListEnd()));
-                return;
-              }
-
-              // TODO: Check later if virtual classRepresentatives are needed to separate children
-              // (i.e. parameters, thrown exceptions).
-
-              // Start children list (add virtual start).
-              wipPcsSet.add(
-                  new Pcs(
-                      classRepresentative,
-                      childListVirtualNodes.childListStart(),
-                      nodeToClassRepresentatives.get(node.getChild(0))));
-
-              // Loop through children (except last one which needs virtual end).
-              for (int i = 0; i < node.getChildren().size() - 1; i++) {
-                wipPcsSet.add(
-                    new Pcs(
-                        classRepresentative,
-                        nodeToClassRepresentatives.get(node.getChild(i)),
-                        nodeToClassRepresentatives.get(node.getChild(i + 1))));
-              }
-
-              // End children list (add virtual end).
-              wipPcsSet.add(
-                  new Pcs(
-                      classRepresentative,
-                      nodeToClassRepresentatives.get(node.getChild(node.getChildren().size() - 1)),
-                      childListVirtualNodes.childListEnd()));
-            });
+      // Chain the children from the virtual start to the virtual end, numbering each once.
+      var previousId = childListStartId;
+      for (var child : children) {
+        final var childId = nodeIds.idOf(nodeToClassRepresentatives.get(child));
+        wipPcsSet.add(packing.pack(classRepresentativeId, previousId, childId));
+        previousId = childId;
+        pending.add(child);
+      }
+      wipPcsSet.add(packing.pack(classRepresentativeId, previousId, childListEndId));
+    }
 
     // Set the final change set.
-    return new ChangeSet(
-        Collections.unmodifiableSet(wipPcsSet), Collections.unmodifiableSet(wipContentTupleSet));
+    return new ChangeSet(wipPcsSet, wipContentTupleSet);
   }
 
   // endregion
@@ -161,112 +141,193 @@ public record ChangeSet(Set<Pcs> pcsSet, Set<ContentTuple> contentTupleSet) {
    * @return a new virtual root node
    */
   private static Tree makeVirtualRoot() {
-    return new ImmutableTree(new DefaultTree(Type.NO_TYPE, "virtualRoot"));
+    return new ImmutableTree(new DefaultTree(VIRTUAL_ROOT, "virtualRoot"));
   }
 
   /**
-   * Create a virtual child list start node to mark the start of a child list in a PCS set.
+   * Create the virtual nodes marking the start and end of a child list in a PCS set.
    *
-   * @return a new virtual child list start node
+   * @return new virtual child list start and end nodes
    */
-  private static Tree makeVirtualChildListStart() {
-    return new ImmutableTree(new DefaultTree(Type.NO_TYPE, "virtualChildListStart"));
+  private static ChildListVirtualNodes makeChildListVirtualNodes() {
+    return new ChildListVirtualNodes(
+        new ImmutableTree(new DefaultTree(VIRTUAL_CHILD_LIST_START, "virtualChildListStart")),
+        new ImmutableTree(new DefaultTree(VIRTUAL_CHILD_LIST_END, "virtualChildListEnd")));
   }
 
+  // endregion
+
   /**
-   * Create a virtual child list end node to mark the end of a child list in a PCS set.
+   * Check if this change set has conflicts.
    *
-   * @return a new virtual child list end node
+   * @return true if any PCS or content tuple is hard inconsistent with another, false otherwise
    */
-  private static Tree makeVirtualChildListEnd() {
-    return new ImmutableTree(new DefaultTree(Type.NO_TYPE, "virtualChildListEnd"));
+  public boolean hasConflicts() {
+    return pcsSet.hasHardInconsistencies() || contentTupleSet.hasHardInconsistencies();
   }
 
-  // endregion
-
   // region Tree conversion methods.
   /**
    * Convert this change set to a GumTree AST.
    *
+   * <p>Each node's child list is rebuilt from its PCSs (found through the PCS set's parent index),
+   * and nodes are processed from an explicit work stack, so the rebuild takes linear time and
+   * constant stack depth.
+   *
    * @return the corresponding GumTree AST
    */
   public Tree toGumTreeTree() {
+    final var nodeIds = pcsSet.nodeIds();
+    final var packing = nodeIds.packedPcs();
+
     // Find root.
-    var maybeRootPcs =
-        pcsSet.stream()
-            .filter(
-                pcs ->
-                    pcs.parent().getLabel().equals("virtualRoot")
-                        && pcs.child().getLabel().equals("virtualChildListStart"))
-            .findFirst();
-    if (maybeRootPcs.isEmpty()) {
+    var rootId = NodeIds.NO_ID;
+    for (var pcs : pcsSet.toPackedArray()) {
+      if (isVirtualRoot(nodeIds.nodeOf(packing.parent(pcs)))
+          && isChildListStart(nodeIds.nodeOf(packing.child(pcs)))) {
+        rootId = packing.successor(pcs);
+        break;
+      }
+    }
+    if (rootId == NodeIds.NO_ID) {
       throw new RuntimeException("Unable to find root in merged change set.");
     }
 
+    // Scratch child -> successor lookup (reset after every node).
+    final var successorOfChild = new int[nodeIds.size()];
+    Arrays.fill(successorOfChild, NodeIds.NO_ID);
+    final var visited = new boolean[nodeIds.size()];
+
     // Rebuild the tree.
-    return toGumTreeTree(maybeRootPcs.get().successor());
+    var pending = new int[64];
+    var pendingCount = 0;
+    pending[pendingCount++] = rootId;
+    while (pendingCount > 0) {
+      final var nodeId = pending[--pendingCount];
+      if (visited[nodeId]) continue;
+      visited[nodeId] = true;
+
+      final var childIds = toGumTreeChildren(nodeId, successorOfChild);
+
+      // Queue the children to be rebuilt.
+      if (pendingCount + childIds.length > pending.length) {
+        final var capacity = Math.max(pending.length * 2, pendingCount + childIds.length);
+        pending = Arrays.copyOf(pending, capacity);
+      }
+      for (var childId : childIds) pending[pendingCount++] = childId;
+    }
+
+    return nodeIds.nodeOf(rootId);
   }
 
   /**
-   * Convert a node and its children to a GumTree AST.
+   * Rebuild the children of a node from its PCSs.
    *
-   * @param node the node to convert
-   * @return the corresponding GumTree AST
+   * @param nodeId the ID of the node to rebuild
+   * @param successorOfChild scratch lookup from child ID to successor ID (all {@link
+   *     NodeIds#NO_ID}, and left that way on return)
+   * @return the IDs of the new children of the node (empty if the node keeps its original children)
    */
-  private Tree toGumTreeTree(Tree node) {
-    // Create new children list.
-    var children = new LinkedList<Tree>();
-
-    // Find the first child.
-    var maybeFirstChildPcs =
-        pcsSet.stream()
-            .filter(
-                pcs ->
-                    pcs.parent() == node && pcs.child().getLabel().equals("virtualChildListStart"))
-            .findFirst();
-
-    // Short-circuit if first child is not found.
-    if (maybeFirstChildPcs.isEmpty()) {
-      throw new RuntimeException(
-          "Unable to find first child of " + node + " in merged change set.");
-    }
-    var currentChild = maybeFirstChildPcs.get().successor();
-
-    // Ensure there is an end node.
-    if (pcsSet.stream()
-        .noneMatch(
-            pcs ->
-                pcs.parent() == node && pcs.successor().getLabel().equals("virtualChildListEnd"))) {
-      throw new RuntimeException("Unable to find end node of " + node + " in merged change set.");
+  private int[] toGumTreeChildren(int nodeId, int[] successorOfChild) {
+    final var nodeIds = pcsSet.nodeIds();
+    final var packing = nodeIds.packedPcs();
+    final var node = nodeIds.nodeOf(nodeId);
+
+    // Unchanged subtrees keep their original children.
+    if (UnchangedSubtrees.isUnchanged(node)) return new int[0];
+
+    // Index this node's PCSs by child (the first PCS for a child wins).
+    final var parentPcs = pcsSet.withParent(nodeId);
+    var firstChildId = NodeIds.NO_ID;
+    var hasEnd = false;
+    for (var pcs : parentPcs) {
+      final var childId = packing.child(pcs);
+      final var successorId = packing.successor(pcs);
+      if (successorOfChild[childId] == NodeIds.NO_ID) successorOfChild[childId] = successorId;
+      if (firstChildId == NodeIds.NO_ID && isChildListStart(nodeIds.nodeOf(childId))) {
+        firstChildId = successorId;
+      }
+      hasEnd |= isChildListEnd(nodeIds.nodeOf(successorId));
     }
 
-    // Iterate through children.
-    while (!currentChild.getLabel().equals("virtualChildListEnd")) {
-      // Recuse add this child to the list.
-      children.add(toGumTreeTree(currentChild));
-
-      // Get next child.
-      var currentScopeChild = currentChild;
-      var maybeNextChildPcs =
-          pcsSet.stream()
-              .filter(pcs -> pcs.parent() == node && pcs.child() == currentScopeChild)
-              .findFirst();
-      if (maybeNextChildPcs.isEmpty()) {
+    try {
+      // Short-circuit if first child is not found.
+      if (firstChildId == NodeIds.NO_ID) {
         throw new RuntimeException(
-            "Unable to find next child of " + currentChild + " in merged change set.");
+            "Unable to find first child of " + node + " in merged change set.");
+      }
+
+      // Ensure there is an end node.
+      if (!hasEnd) {
+        throw new RuntimeException(
+            "Unable to find end node of " + node + " in merged change set.");
       }
-      currentChild = maybeNextChildPcs.get().successor();
-    }
 
-    // Set nodes new children are replacing in metadata.
-    for (int i = 0; i < children.size(); i++) {
-      children.get(i).setMetadata("replacing", node.getChild(i));
+      // Iterate through children.
+      var children = new ArrayList<Tree>();
+      var childIds = new int[parentPcs.length];
+      var currentChildId = firstChildId;
+      while (!isChildListEnd(nodeIds.nodeOf(currentChildId))) {
+        final var currentChild = nodeIds.nodeOf(currentChildId);
+
+        // Guard against cycles in a malformed child list.
+        if (children.size() == parentPcs.length) {
+          throw new RuntimeException("Child list of " + node + " does not end.");
+        }
+        childIds[children.size()] = currentChildId;
+        children.add(currentChild);
+
+        // Get next child.
+        currentChildId = successorOfChild[currentChildId];
+        if (currentChildId == NodeIds.NO_ID) {
+          throw new RuntimeException(
+              "Unable to find next child of " + currentChild + " in merged change set.");
+        }
+      }
+
+      // Set nodes new children are replacing in metadata.
+      for (int i = 0; i < children.size() && i < node.getChildren().size(); i++) {
+        children.get(i).setMetadata("replacing", node.getChild(i));
+      }
+
+      // Update the children set of the node.
+      node.setChildren(children);
+
+      return Arrays.copyOf(childIds, children.size());
+    } finally {
+      // Reset the scratch lookup.
+      for (var pcs : parentPcs) successorOfChild[packing.child(pcs)] = NodeIds.NO_ID;
     }
+  }
 
-    // Update the children set of the node.
-    node.setChildren(children);
+  /**
+   * Check if a node is a virtual root node.
+   *
+   * @param node the node to check
+   * @return true if the node marks the root of an AST, false otherwise
+   */
+  private static boolean isVirtualRoot(Tree node) {
+    return node.getType() == VIRTUAL_ROOT;
+  }
+
+  /**
+   * Check if a node is a virtual child list start node.
+   *
+   * @param node the node to check
+   * @return true if the node marks the start of a child list, false otherwise
+   */
+  private static boolean isChildListStart(Tree node) {
+    return node.getType() == VIRTUAL_CHILD_LIST_START;
+  }
 
-    return node;
+  /**
+   * Check if a node is a virtual child list end node.
+   *
+   * @param node the node to check
+   * @return true if the node marks the end of a child list, false otherwise
+   */
+  private static boolean isChildListEnd(Tree node) {
+    return node.getType() == VIRTUAL_CHILD_LIST_END;
   }
   // endregion
 }
@@ -5,9 +5,12 @@ package org.kjy5.spork;
 
 import com.github.gumtreediff.matchers.MappingStore;
 import com.github.gumtreediff.tree.Tree;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Class representative nodes in a merge.
@@ -16,9 +19,78 @@ import java.util.Map;
  * three branches of a merge. They are used to collapse the reference of matching nodes between the
  * three branches into a single node.
  *
+ * <p>The nodes of the three trees are given dense IDs from their postorder positions (base, then
+ * left, then right), and the classes are kept in a union-find forest over those IDs. The forest is
+ * built with one pass over each match mapping, and parent consistency is checked on the ID arrays.
+ * The ID ranges also tell which {@link Revision} a node comes from, so no per-node table is kept.
+ *
  * @author Kenneth Yang
  */
-public class ClassRepresentatives {
+public class ClassRepresentatives extends AbstractMap<Tree, Tree> {
+  // region Constants.
+  /** Value used where there is no node ID. */
+  private static final int NO_ID = -1;
+
+  /** The revision of each tree, by tree index. */
+  private static final Revision[] REVISIONS = Revision.values();
+
+  // endregion
+
+  // region Fields.
+  private final Tree[] roots;
+
+  /** The ID of the first node of each tree. */
+  private final int[] offsets;
+
+  /** The postorder position of the first node of each tree. */
+  private final int[] firstPositions;
+
+  /** Nodes by ID. */
+  private final Tree[] nodes;
+
+  /** Parent IDs by ID ({@link #NO_ID} for roots). */
+  private final int[] parents;
+
+  /**
+   * Union-find links by ID (an ID linked to itself is a class representative). Once built, every ID
+   * links directly to its class representative.
+   */
+  private final int[] links;
+
+  private Set<Entry<Tree, Tree>> entrySet;
+
+  // endregion
+
+  /**
+   * Number the nodes of the three trees, with every node its own class representative.
+   *
+   * @param baseTree the base tree
+   * @param leftTree the left tree
+   * @param rightTree the right tree
+   */
+  private ClassRepresentatives(Tree baseTree, Tree leftTree, Tree rightTree) {
+    roots = new Tree[] {baseTree, leftTree, rightTree};
+    offsets = new int[roots.length + 1];
+    firstPositions = new int[roots.length];
+    for (var i = 0; i < roots.length; i++) {
+      final var metrics = roots[i].getMetrics();
+      offsets[i + 1] = offsets[i] + metrics.size;
+      firstPositions[i] = metrics.position - metrics.size + 1;
+    }
+
+    nodes = new Tree[offsets[roots.length]];
+    parents = new int[nodes.length];
+    links = new int[nodes.length];
+    for (var i = 0; i < roots.length; i++) {
+      for (var node : roots[i].postOrder()) {
+        final var id = idOf(i, node);
+        nodes[id] = node;
+        parents[id] = node == roots[i] ? NO_ID : idOf(i, node.getParent());
+        links[id] = id;
+      }
+    }
+  }
+
   /**
    * Create mapping from nodes in the three branches to their class representatives.
    *
@@ -28,72 +100,207 @@ public class ClassRepresentatives {
    * @param baseToLeft the match mapping from base to left
    * @param baseToRight the match mapping from base to right
    * @param leftToRight the match mapping from left to right
+   * @return an unmodifiable mapping from every node of the three trees to its class representative
    */
-  public static Map<Tree, Tree> from(
+  public static ClassRepresentatives from(
       Tree baseTree,
       Tree leftTree,
       Tree rightTree,
       MappingStore baseToLeft,
       MappingStore baseToRight,
       MappingStore leftToRight) {
-    // Initialize an empty class representatives mapping.
-    var nodeToClassRepresentative = new LinkedHashMap<Tree, Tree>();
+    // Initialize every node as its own class representative (base nodes stay that way).
+    var classRepresentatives = new ClassRepresentatives(baseTree, leftTree, rightTree);
 
-    // Nodes in the base tree are mapped to themselves.
-    baseTree.preOrder().forEach(node -> nodeToClassRepresentative.put(node, node));
+    // Left and right nodes are mapped to base if a matching exists.
+    classRepresentatives.linkToBase(baseToLeft, 1);
+    classRepresentatives.linkToBase(baseToRight, 2);
 
-    // Left nodes are mapped to base if a matching exists, otherwise they're mapped to themselves.
-    mapToBaseOrToSelf(leftTree, baseToLeft, nodeToClassRepresentative);
+    // Map right nodes to left nodes if their parents are mapped to the same class representative.
+    classRepresentatives.linkRightToLeft(leftToRight);
 
-    // Right nodes are mapped to base if a matching exists, otherwise they're mapped to themselves.
-    mapToBaseOrToSelf(rightTree, baseToRight, nodeToClassRepresentative);
+    // Point every node directly at its class representative so lookups are read-only.
+    classRepresentatives.flatten();
 
-    // Map right nodes to left nodes if their parents are mapped to the same class representative.
-    // Use breadth-first ordering to ensure parents have been handled before looking at children.
-    for (var leftNode : leftTree.breadthFirst()) {
+    // Return the class representatives mapping.
+    return classRepresentatives;
+  }
+
+  // region Map methods.
+
+  @Override
+  public Tree get(Object key) {
+    final var id = key instanceof Tree node ? find(node) : NO_ID;
+    return id == NO_ID ? null : nodes[links[id]];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof Tree node && find(node) != NO_ID;
+  }
+
+  @Override
+  public int size() {
+    return nodes.length;
+  }
+
+  @Override
+  public Set<Entry<Tree, Tree>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Tree, Tree>> iterator() {
+              return new Iterator<>() {
+                private int nextId = 0;
+
+                @Override
+                public boolean hasNext() {
+                  return nextId < nodes.length;
+                }
+
+                @Override
+                public Entry<Tree, Tree> next() {
+                  if (!hasNext()) throw new NoSuchElementException();
+
+                  final var id = nextId++;
+                  return new SimpleImmutableEntry<>(nodes[id], nodes[links[id]]);
+                }
+              };
+            }
+
+            @Override
+            public int size() {
+              return nodes.length;
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  // endregion
+
+  /**
+   * Get the revision a node comes from.
+   *
+   * @param node the node
+   * @return the revision of the tree containing the node, or null if it is not in any of the trees
+   */
+  public Revision revisionOf(Tree node) {
+    final var tree = treeOf(node);
+    return tree == NO_ID ? null : REVISIONS[tree];
+  }
+
+  // region Linking methods.
+
+  /**
+   * Link the nodes of a branch to their matched base nodes.
+   *
+   * @param baseToBranch the match mapping from base to the branch
+   * @param branch the index of the branch tree (1 for left, 2 for right)
+   */
+  private void linkToBase(MappingStore baseToBranch, int branch) {
+    for (var mapping : baseToBranch) {
+      links[idOf(branch, mapping.second)] = idOf(0, mapping.first);
+    }
+  }
+
+  /**
+   * Link unmatched right nodes to their matched unmatched left nodes if the parents of both are in
+   * the same class.
+   *
+   * @param leftToRight the match mapping from left to right
+   */
+  private void linkRightToLeft(MappingStore leftToRight) {
+    // Index the matches by left ID.
+    final var leftOffset = offsets[1];
+    final var matchedRightIds = new int[offsets[2] - leftOffset];
+    Arrays.fill(matchedRightIds, NO_ID);
+    for (var mapping : leftToRight) {
+      matchedRightIds[idOf(1, mapping.first) - leftOffset] = idOf(2, mapping.second);
+    }
+
+    // Visit left nodes in reverse postorder so parents are handled before their children.
+    for (var leftId = offsets[2] - 1; leftId >= leftOffset; leftId--) {
       // Skip if the left node is already mapped to base.
-      if (nodeToClassRepresentative.get(leftNode) != leftNode) continue;
+      if (representativeOf(leftId) != leftId) continue;
 
       // Skip if the left node is not mapped to right.
-      if (!leftToRight.isSrcMapped(leftNode)) continue;
-
-      // Find the matched right node (could be null).
-      final var matchedRightNode = leftToRight.getDstForSrc(leftNode);
+      final var rightId = matchedRightIds[leftId - leftOffset];
+      if (rightId == NO_ID) continue;
 
       // Skip if the matched right node is already mapped to base.
-      if (nodeToClassRepresentative.get(matchedRightNode) != matchedRightNode) continue;
+      if (representativeOf(rightId) != rightId) continue;
 
       // Update the right node's mapping to the left node if the parents are also mapped.
-      if (nodeToClassRepresentative.get(leftNode.getParent())
-          == nodeToClassRepresentative.get(matchedRightNode.getParent())) {
-        nodeToClassRepresentative.put(matchedRightNode, leftNode);
-      }
+      final var leftParentId = parents[leftId];
+      final var rightParentId = parents[rightId];
+      final var parentsMapped =
+          leftParentId == NO_ID || rightParentId == NO_ID
+              ? leftParentId == rightParentId
+              : representativeOf(leftParentId) == representativeOf(rightParentId);
+      if (parentsMapped) links[rightId] = leftId;
     }
+  }
 
-    // Return the class representatives mapping.
-    return Collections.unmodifiableMap(nodeToClassRepresentative);
+  /** Link every node directly to its class representative. */
+  private void flatten() {
+    for (var id = 0; id < links.length; id++) links[id] = representativeOf(id);
   }
 
+  // endregion
+
+  // region ID helpers.
+
   /**
-   * Map the base node as the class representative if a matching exists, otherwise map to self.
+   * Get the class representative of a node.
    *
-   * <p>This will update the nodeToClassRepresentative mapping.
+   * @param id the node ID
+   * @return the ID of the node's class representative
+   */
+  private int representativeOf(int id) {
+    // Path halving.
+    while (links[id] != id) {
+      links[id] = links[links[id]];
+      id = links[id];
+    }
+    return id;
+  }
+
+  /**
+   * Get the ID of a node in one of the trees.
    *
-   * @param tree the tree to map
-   * @param baseToBranch the mapping from base to this tree
-   * @param nodeToClassRepresentative the mapping from nodes to their class representatives
+   * @param tree the index of the tree (0 for base, 1 for left, 2 for right)
+   * @param node the node (in that tree)
+   * @return the ID of the node
    */
-  private static void mapToBaseOrToSelf(
-      Tree tree, MappingStore baseToBranch, Map<Tree, Tree> nodeToClassRepresentative) {
-    for (var node : tree.preOrder()) {
-      final var matchedBaseNode = baseToBranch.getSrcForDst(node);
-      if (matchedBaseNode != null) {
-        // A matching exists, classRepresentativesMap to it.
-        nodeToClassRepresentative.put(node, matchedBaseNode);
-      } else {
-        // No matching exists, classRepresentativesMap to self.
-        nodeToClassRepresentative.put(node, node);
-      }
+  private int idOf(int tree, Tree node) {
+    return offsets[tree] + node.getMetrics().position - firstPositions[tree];
+  }
+
+  /**
+   * Find the ID of a node from any of the trees.
+   *
+   * @param node the node
+   * @return the ID of the node, or {@link #NO_ID} if it is not in any of the trees
+   */
+  private int find(Tree node) {
+    final var tree = treeOf(node);
+    return tree == NO_ID ? NO_ID : idOf(tree, node);
+  }
+
+  /**
+   * Find the tree a node is in.
+   *
+   * @param node the node
+   * @return the index of the tree containing the node, or {@link #NO_ID} if it is in none of them
+   */
+  private int treeOf(Tree node) {
+    for (var tree = 0; tree < roots.length; tree++) {
+      final var id = idOf(tree, node);
+      if (id >= offsets[tree] && id < offsets[tree + 1] && nodes[id] == node) return tree;
     }
+    return NO_ID;
   }
+  // endregion
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+/**
+ * Storage for the primitive columns of a PCS set.
+ *
+ * <p>A PCS set keeps its packed PCSs, side tables, and node indexes in fixed-length columns of
+ * primitives. Columns are either plain arrays on the heap ({@link HeapColumns}) or native memory
+ * segments ({@link OffHeapColumns}), which keep huge merges out of the garbage-collected heap. New
+ * columns are always zero-filled.
+ *
+ * @author Kenneth Yang
+ */
+interface Columns {
+  // region Constants.
+  /** The expected number of PCSs at which a PCS set is stored off the heap. */
+  int OFF_HEAP_THRESHOLD = 1_000_000;
+
+  // endregion
+
+  /**
+   * Choose the column storage for a PCS set.
+   *
+   * @param expectedSize the number of PCSs expected to be added
+   * @return off-heap storage if the set is expected to reach {@link #OFF_HEAP_THRESHOLD} PCSs, heap
+   *     storage otherwise
+   */
+  static Columns forSize(int expectedSize) {
+    return expectedSize >= OFF_HEAP_THRESHOLD ? OffHeapColumns.INSTANCE : HeapColumns.INSTANCE;
+  }
+
+  /**
+   * Allocate a zero-filled column of {@code long}s.
+   *
+   * @param length the number of elements
+   * @return the new column
+   */
+  LongColumn newLongColumn(int length);
+
+  /**
+   * Allocate a zero-filled column of {@code int}s.
+   *
+   * @param length the number of elements
+   * @return the new column
+   */
+  IntColumn newIntColumn(int length);
+
+  /**
+   * Allocate a zero-filled column of {@code byte}s.
+   *
+   * @param length the number of elements
+   * @return the new column
+   */
+  ByteColumn newByteColumn(int length);
+
+  /** A fixed-length column of {@code long}s. */
+  interface LongColumn {
+    /**
+     * Get the number of elements.
+     *
+     * @return the length of the column
+     */
+    int length();
+
+    /**
+     * Get an element.
+     *
+     * @param index the element index
+     * @return the element
+     */
+    long get(int index);
+
+    /**
+     * Set an element.
+     *
+     * @param index the element index
+     * @param value the new value
+     */
+    void set(int index, long value);
+
+    /**
+     * Copy this column into a new column of a different length (like {@link
+     * java.util.Arrays#copyOf(long[], int)}).
+     *
+     * @param length the length of the new column
+     * @return the new column, zero-filled past this column's length
+     */
+    LongColumn resize(int length);
+  }
+
+  /** A fixed-length column of {@code int}s. */
+  interface IntColumn {
+    /**
+     * Get the number of elements.
+     *
+     * @return the length of the column
+     */
+    int length();
+
+    /**
+     * Get an element.
+     *
+     * @param index the element index
+     * @return the element
+     */
+    int get(int index);
+
+    /**
+     * Set an element.
+     *
+     * @param index the element index
+     * @param value the new value
+     */
+    void set(int index, int value);
+
+    /**
+     * Set a range of elements (like {@link java.util.Arrays#fill(int[], int, int, int)}).
+     *
+     * @param fromIndex the first element index (inclusive)
+     * @param toIndex the last element index (exclusive)
+     * @param value the value to set
+     */
+    void fill(int fromIndex, int toIndex, int value);
+
+    /**
+     * Copy this column into a new column of a different length (like {@link
+     * java.util.Arrays#copyOf(int[], int)}).
+     *
+     * @param length the length of the new column
+     * @return the new column, zero-filled past this column's length
+     */
+    IntColumn resize(int length);
+  }
+
+  /** A fixed-length column of {@code byte}s. */
+  interface ByteColumn {
+    /**
+     * Get the number of elements.
+     *
+     * @return the length of the column
+     */
+    int length();
+
+    /**
+     * Get an element.
+     *
+     * @param index the element index
+     * @return the element
+     */
+    byte get(int index);
+
+    /**
+     * Set an element.
+     *
+     * @param index the element index
+     * @param value the new value
+     */
+    void set(int index, byte value);
+
+    /**
+     * Copy this column into a new column of a different length (like {@link
+     * java.util.Arrays#copyOf(byte[], int)}).
+     *
+     * @param length the length of the new column
+     * @return the new column, zero-filled past this column's length
+     */
+    ByteColumn resize(int length);
+  }
+}
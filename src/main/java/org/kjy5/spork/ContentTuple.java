@@ -5,15 +5,15 @@ import com.github.gumtreediff.tree.Tree;
 /**
  * A Spork content tuple.
  *
- * <p>Contains a node, its content (i.e. value for a literal, name for variable), and a reference to
- * the content tuple it is hard inconsistent with (if any)
+ * <p>Contains a node and its content (i.e. value for a literal, name for variable). Hard
+ * inconsistencies between content tuples are kept by the {@link ContentTupleSet} the content tuple
+ * is in.
  *
  * @param node the node for which the content is associated with
  * @param content the content associated with the node
- * @param hardInconsistencyWith the content tuple it is hard inconsistent with
  * @author Kenneth Yang
  */
-public record ContentTuple(Tree node, String content, ContentTuple hardInconsistencyWith) {
+public record ContentTuple(Tree node, String content) {
 
   /**
    * Print the content tuple.
@@ -22,6 +22,6 @@ public record ContentTuple(Tree node, String content, ContentTuple hardInconsist
    */
   @Override
   public String toString() {
-    return "ContentTuple(" + node + ", " + content + ", " + hardInconsistencyWith + ')';
+    return "ContentTuple(" + node + ", " + content + ')';
   }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import com.github.gumtreediff.tree.Tree;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An insertion-ordered set of content tuples indexed by node.
+ *
+ * <p>Content tuples are indexed by their (class representative) node so that the content of a node
+ * can be looked up and replaced without scanning the whole set. Each content tuple is tagged with a
+ * mask of the {@link Revision}s it came from, and hard inconsistencies between content tuples are
+ * kept in a side table so the tuples themselves never change.
+ *
+ * @see org.kjy5.spork.ContentTuple
+ * @author Kenneth Yang
+ */
+public class ContentTupleSet extends AbstractSet<ContentTuple> {
+  // region Fields.
+  private final Map<ContentTuple, Byte> contentTupleToRevisions;
+  private final Map<Tree, Set<ContentTuple>> nodeIndex;
+  private final Map<ContentTuple, ContentTuple> hardInconsistencies = new HashMap<>();
+
+  // endregion
+
+  // region Constructors.
+
+  /** Create an empty content tuple set. */
+  public ContentTupleSet() {
+    this(16);
+  }
+
+  /**
+   * Create an empty content tuple set.
+   *
+   * @param expectedSize the number of content tuples expected to be added
+   */
+  public ContentTupleSet(int expectedSize) {
+    final var initialCapacity = (int) Math.ceil(Math.max(expectedSize, 16) / 0.75);
+    contentTupleToRevisions = new LinkedHashMap<>(initialCapacity);
+    nodeIndex = new LinkedHashMap<>(initialCapacity);
+  }
+
+  /**
+   * Create a content tuple set containing the given content tuples.
+   *
+   * @param contentTuples the content tuples to add
+   */
+  public ContentTupleSet(Collection<ContentTuple> contentTuples) {
+    this(contentTuples.size());
+    addAll(contentTuples);
+  }
+
+  // endregion
+
+  // region Set methods.
+
+  @Override
+  public Iterator<ContentTuple> iterator() {
+    final var iterator = contentTupleToRevisions.keySet().iterator();
+    return new Iterator<>() {
+      private ContentTuple current;
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public ContentTuple next() {
+        current = iterator.next();
+        return current;
+      }
+
+      @Override
+      public void remove() {
+        iterator.remove();
+        unindex(current);
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return contentTupleToRevisions.size();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return contentTupleToRevisions.containsKey(o);
+  }
+
+  @Override
+  public boolean add(ContentTuple contentTuple) {
+    return add(contentTuple, 0);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof ContentTuple contentTuple)
+        || contentTupleToRevisions.remove(contentTuple) == null) {
+      return false;
+    }
+
+    unindex(contentTuple);
+    return true;
+  }
+
+  // endregion
+
+  // region Lookup methods.
+
+  /**
+   * Add a content tuple and tag it with the revisions it came from.
+   *
+   * <p>If the content tuple is already in the set, the revisions are added to its existing tags.
+   *
+   * @param contentTuple the content tuple to add
+   * @param revisionMask the mask of revisions the content tuple came from
+   * @return true if the content tuple was added, false if it was already in the set
+   */
+  public boolean add(ContentTuple contentTuple, int revisionMask) {
+    final var existingRevisionMask = contentTupleToRevisions.get(contentTuple);
+    if (existingRevisionMask != null) {
+      contentTupleToRevisions.put(contentTuple, (byte) (existingRevisionMask | revisionMask));
+      return false;
+    }
+    contentTupleToRevisions.put(contentTuple, (byte) revisionMask);
+
+    nodeIndex.computeIfAbsent(contentTuple.node(), key -> new LinkedHashSet<>()).add(contentTuple);
+    return true;
+  }
+
+  /**
+   * Add all content tuples of another content tuple set and tag them with a revision.
+   *
+   * @param contentTupleSet the content tuples to add
+   * @param revision the revision the content tuples came from
+   */
+  public void addAll(ContentTupleSet contentTupleSet, Revision revision) {
+    for (var contentTuple : contentTupleSet) add(contentTuple, revision.mask());
+  }
+
+  /**
+   * Get the content tuple a content tuple is hard inconsistent with.
+   *
+   * @param contentTuple the content tuple
+   * @return the content tuple it is hard inconsistent with, or null if none
+   */
+  public ContentTuple hardInconsistencyOf(ContentTuple contentTuple) {
+    return hardInconsistencies.get(contentTuple);
+  }
+
+  /**
+   * Check if any content tuple in the set is hard inconsistent with another content tuple.
+   *
+   * @return true if the set has a hard inconsistency, false otherwise
+   */
+  public boolean hasHardInconsistencies() {
+    return !hardInconsistencies.isEmpty();
+  }
+
+  /**
+   * Mark a content tuple as hard inconsistent with another content tuple.
+   *
+   * @param contentTuple the content tuple to mark (must be in the set)
+   * @param otherContentTuple the content tuple it is hard inconsistent with
+   */
+  public void setHardInconsistency(ContentTuple contentTuple, ContentTuple otherContentTuple) {
+    hardInconsistencies.put(contentTuple, otherContentTuple);
+  }
+
+  /**
+   * Get the revisions a content tuple came from.
+   *
+   * @param contentTuple the content tuple
+   * @return the mask of revisions the content tuple came from (0 if it is not in the set)
+   */
+  public int revisionsOf(ContentTuple contentTuple) {
+    final var revisionMask = contentTupleToRevisions.get(contentTuple);
+    return revisionMask == null ? 0 : revisionMask;
+  }
+
+  /**
+   * Get all content tuples associated with a node.
+   *
+   * @param node the node to get content tuples for
+   * @return an unmodifiable view of the content tuples associated with the node
+   */
+  public Set<ContentTuple> withNode(Tree node) {
+    var indexed = nodeIndex.get(node);
+    return indexed == null ? Collections.emptySet() : Collections.unmodifiableSet(indexed);
+  }
+
+  /**
+   * Get the content of a node.
+   *
+   * @param node the node to get the content of
+   * @return the first content tuple associated with the node (in insertion order), or null if the
+   *     node has no content
+   */
+  public ContentTuple contentOf(Tree node) {
+    var indexed = nodeIndex.get(node);
+    return indexed == null ? null : indexed.iterator().next();
+  }
+
+  /**
+   * Get all nodes that have content in this set.
+   *
+   * @return an unmodifiable view of the nodes with content, in insertion order
+   */
+  public Set<Tree> nodes() {
+    return Collections.unmodifiableSet(nodeIndex.keySet());
+  }
+
+  // endregion
+
+  // region Index helpers.
+
+  /**
+   * Remove a content tuple from the node index and the hard inconsistency side table.
+   *
+   * @param contentTuple the content tuple to remove
+   */
+  private void unindex(ContentTuple contentTuple) {
+    hardInconsistencies.remove(contentTuple);
+
+    var indexed = nodeIndex.get(contentTuple.node());
+    if (indexed == null) return;
+
+    indexed.remove(contentTuple);
+    if (indexed.isEmpty()) nodeIndex.remove(contentTuple.node());
+  }
+  // endregion
+}
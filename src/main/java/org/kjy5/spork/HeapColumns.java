@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import java.util.Arrays;
+
+/**
+ * Columns stored in plain arrays on the heap.
+ *
+ * @author Kenneth Yang
+ */
+final class HeapColumns implements Columns {
+  // region Constants.
+  /** The shared heap column storage. */
+  static final HeapColumns INSTANCE = new HeapColumns();
+
+  // endregion
+
+  private HeapColumns() {}
+
+  // region Column factories.
+
+  @Override
+  public LongColumn newLongColumn(int length) {
+    return new HeapLongColumn(new long[length]);
+  }
+
+  @Override
+  public IntColumn newIntColumn(int length) {
+    return new HeapIntColumn(new int[length]);
+  }
+
+  @Override
+  public ByteColumn newByteColumn(int length) {
+    return new HeapByteColumn(new byte[length]);
+  }
+
+  // endregion
+
+  // region Columns.
+
+  /**
+   * A column of {@code long}s in an array.
+   *
+   * @param values the backing array
+   */
+  private record HeapLongColumn(long[] values) implements LongColumn {
+    @Override
+    public int length() {
+      return values.length;
+    }
+
+    @Override
+    public long get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public void set(int index, long value) {
+      values[index] = value;
+    }
+
+    @Override
+    public LongColumn resize(int length) {
+      return new HeapLongColumn(Arrays.copyOf(values, length));
+    }
+  }
+
+  /**
+   * A column of {@code int}s in an array.
+   *
+   * @param values the backing array
+   */
+  private record HeapIntColumn(int[] values) implements IntColumn {
+    @Override
+    public int length() {
+      return values.length;
+    }
+
+    @Override
+    public int get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public void set(int index, int value) {
+      values[index] = value;
+    }
+
+    @Override
+    public void fill(int fromIndex, int toIndex, int value) {
+      Arrays.fill(values, fromIndex, toIndex, value);
+    }
+
+    @Override
+    public IntColumn resize(int length) {
+      return new HeapIntColumn(Arrays.copyOf(values, length));
+    }
+  }
+
+  /**
+   * A column of {@code byte}s in an array.
+   *
+   * @param values the backing array
+   */
+  private record HeapByteColumn(byte[] values) implements ByteColumn {
+    @Override
+    public int length() {
+      return values.length;
+    }
+
+    @Override
+    public byte get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public void set(int index, byte value) {
+      values[index] = value;
+    }
+
+    @Override
+    public ByteColumn resize(int length) {
+      return new HeapByteColumn(Arrays.copyOf(values, length));
+    }
+  }
+  // endregion
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.matchers.Matcher;
+import com.github.gumtreediff.tree.DefaultTree;
+import com.github.gumtreediff.tree.Tree;
+import com.github.gumtreediff.tree.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.kjy5.cache.Types;
+
+/**
+ * A left-to-right matching restricted to the regions inserted by both branches.
+ *
+ * <p>{@link ClassRepresentatives} only uses a left-to-right match when neither node is matched to
+ * base and both parents are in the same class. Such nodes always lie in inserted regions (maximal
+ * subtrees whose root is not matched to base) that hang off the same base node in both branches, so
+ * only those regions are matched against each other instead of the whole trees.
+ *
+ * @author Kenneth Yang
+ */
+public class InsertionMatching {
+  // region Constants.
+  /** Type of the synthetic root that gathers the inserted regions of one parent for matching. */
+  private static final Type INSERTED_REGIONS = Types.of("insertedRegions");
+
+  /** Group key for inserted regions at the root of a tree (which has no parent). */
+  private static final Object ROOT_KEY = new Object();
+
+  // endregion
+
+  /**
+   * Match the regions inserted under the same base node by both branches.
+   *
+   * @param leftTree the left tree
+   * @param rightTree the right tree
+   * @param baseToLeft the match mapping from base to left
+   * @param baseToRight the match mapping from base to right
+   * @param matcher the matcher to match the inserted regions with
+   * @return the match mapping from left to right, covering only the inserted regions
+   */
+  public static MappingStore match(
+      Tree leftTree,
+      Tree rightTree,
+      MappingStore baseToLeft,
+      MappingStore baseToRight,
+      Matcher matcher) {
+    var leftToRight = new MappingStore(leftTree, rightTree);
+
+    // Group the inserted regions by the base node they were inserted under.
+    final var leftRegions = insertedRegions(leftTree, baseToLeft);
+    final var rightRegions = insertedRegions(rightTree, baseToRight);
+
+    // Match the regions of each base node inserted into by both branches.
+    for (var entry : leftRegions.entrySet()) {
+      final var matchingRightRegions = rightRegions.get(entry.getKey());
+      if (matchingRightRegions == null) continue;
+
+      // Match copies gathered under synthetic roots, so the matcher cannot climb into the rest of
+      // the trees.
+      final var leftCopyToNode = new IdentityHashMap<Tree, Tree>();
+      final var rightCopyToNode = new IdentityHashMap<Tree, Tree>();
+      final var regionMappings =
+          matcher.match(
+              copyUnderSyntheticRoot(entry.getValue(), leftCopyToNode),
+              copyUnderSyntheticRoot(matchingRightRegions, rightCopyToNode));
+
+      // Map matches back to the original nodes (dropping the synthetic roots).
+      for (var mapping : regionMappings) {
+        final var leftNode = leftCopyToNode.get(mapping.first);
+        final var rightNode = rightCopyToNode.get(mapping.second);
+        if (leftNode != null && rightNode != null) leftToRight.addMapping(leftNode, rightNode);
+      }
+    }
+
+    return leftToRight;
+  }
+
+  /**
+   * Find the inserted regions of a branch.
+   *
+   * @param tree the branch tree
+   * @param baseToBranch the match mapping from base to the branch
+   * @return the roots of the inserted regions, grouped by the base node their parent is matched to
+   *     (or {@link #ROOT_KEY} for the tree root)
+   */
+  private static Map<Object, List<Tree>> insertedRegions(Tree tree, MappingStore baseToBranch) {
+    var regions = new LinkedHashMap<Object, List<Tree>>();
+
+    // Look top-down so only maximal regions are found.
+    var pending = new ArrayDeque<Tree>();
+    pending.add(tree);
+    while (!pending.isEmpty()) {
+      final var node = pending.poll();
+
+      // Matched nodes are not inserted, but their descendants may be.
+      if (baseToBranch.isDstMapped(node)) {
+        pending.addAll(node.getChildren());
+        continue;
+      }
+
+      // Nodes are only reached once their parent is known to be matched (or they are the root).
+      final Object key = node == tree ? ROOT_KEY : baseToBranch.getSrcForDst(node.getParent());
+      regions.computeIfAbsent(key, k -> new ArrayList<>()).add(node);
+    }
+
+    return regions;
+  }
+
+  /**
+   * Copy subtrees as the children of a new synthetic root.
+   *
+   * @param roots the roots of the subtrees to copy
+   * @param copyToNode the mapping from copied nodes to original nodes to fill
+   * @return the synthetic root
+   */
+  private static Tree copyUnderSyntheticRoot(List<Tree> roots, Map<Tree, Tree> copyToNode) {
+    var syntheticRoot = new DefaultTree(INSERTED_REGIONS);
+    for (var root : roots) {
+      final var copy = root.deepCopy();
+      syntheticRoot.addChild(copy);
+
+      // Copies have the same shape, so walk both in lockstep.
+      Iterator<Tree> nodes = root.preOrder().iterator();
+      for (var copiedNode : copy.preOrder()) copyToNode.put(copiedNode, nodes.next());
+    }
+    return syntheticRoot;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+/**
+ * An insertion-ordered open-addressing hash set of non-negative {@code long} keys.
+ *
+ * <p>Keys are stored unboxed in an append-only entry array, and a linear-probing table maps keys to
+ * their entry index. Entry indexes are stable for the lifetime of the set (removed entries leave a
+ * hole), so callers can keep per-entry data in parallel arrays. Both are stored in {@link Columns},
+ * on or off the heap.
+ *
+ * @author Kenneth Yang
+ */
+final class LongOrderedHashSet {
+  // region Constants.
+  private static final long REMOVED = -1L;
+  private static final int EMPTY = 0;
+  private static final int TOMBSTONE = -1;
+  private static final int MINIMUM_CAPACITY = 16;
+
+  // endregion
+
+  // region Fields.
+  private final Columns columns;
+
+  /** Keys in insertion order ({@link #REMOVED} for removed keys). */
+  private Columns.LongColumn entries;
+
+  private int entryCount;
+  private int size;
+
+  /** Probing table of entry index + 1 ({@link #EMPTY} or {@link #TOMBSTONE} otherwise). */
+  private Columns.IntColumn table;
+
+  private int usedSlots;
+
+  // endregion
+
+  /**
+   * Create an empty set.
+   *
+   * @param expectedSize the number of keys expected to be added
+   * @param columns the storage for the entries and the probing table
+   */
+  LongOrderedHashSet(int expectedSize, Columns columns) {
+    this.columns = columns;
+    entries = columns.newLongColumn(Math.max(expectedSize, MINIMUM_CAPACITY));
+    table = columns.newIntColumn(tableCapacityFor(expectedSize));
+  }
+
+  // region Set methods.
+
+  /**
+   * Get the number of keys in the set.
+   *
+   * @return the number of keys
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Check if a key is in the set.
+   *
+   * @param key the key to check
+   * @return true if the key is in the set, false otherwise
+   */
+  boolean contains(long key) {
+    return slotOf(key) >= 0;
+  }
+
+  /**
+   * Get the entry index of a key.
+   *
+   * @param key the key to look up
+   * @return the entry index of the key, or -1 if it is not in the set
+   */
+  int indexOf(long key) {
+    final var slot = slotOf(key);
+    return slot < 0 ? -1 : table.get(slot) - 1;
+  }
+
+  /**
+   * Add a key to the set.
+   *
+   * @param key the (non-negative) key to add
+   * @return the entry index of the added key, or -1 if it was already in the set
+   */
+  int add(long key) {
+    if (slotOf(key) >= 0) return -1;
+
+    // Grow storage.
+    if ((usedSlots + 1) * 2 > table.length()) rehash();
+    if (entryCount == entries.length()) entries = entries.resize(entryCount * 2);
+
+    // Append entry.
+    final var entry = entryCount++;
+    entries.set(entry, key);
+    size++;
+
+    // Insert into first free slot.
+    final var mask = table.length() - 1;
+    var slot = hash(key) & mask;
+    while (table.get(slot) > 0) slot = (slot + 1) & mask;
+    if (table.get(slot) == EMPTY) usedSlots++;
+    table.set(slot, entry + 1);
+
+    return entry;
+  }
+
+  /**
+   * Remove a key from the set.
+   *
+   * @param key the key to remove
+   * @return the entry index of the removed key, or -1 if it was not in the set
+   */
+  int remove(long key) {
+    final var slot = slotOf(key);
+    if (slot < 0) return -1;
+
+    final var entry = table.get(slot) - 1;
+    table.set(slot, TOMBSTONE);
+    entries.set(entry, REMOVED);
+    size--;
+    return entry;
+  }
+
+  // endregion
+
+  // region Entry methods.
+
+  /**
+   * Get the number of entries, including removed ones.
+   *
+   * @return one more than the largest entry index
+   */
+  int entryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Check if an entry still holds a key.
+   *
+   * @param entry the entry index
+   * @return true if the entry's key has not been removed, false otherwise
+   */
+  boolean isLive(int entry) {
+    return entries.get(entry) != REMOVED;
+  }
+
+  /**
+   * Get the key of an entry.
+   *
+   * @param entry the entry index
+   * @return the key of the entry
+   */
+  long entry(int entry) {
+    return entries.get(entry);
+  }
+
+  /**
+   * Get all keys in insertion order.
+   *
+   * @return a new array of the keys
+   */
+  long[] toArray() {
+    final var keys = new long[size];
+    var index = 0;
+    for (var entry = 0; entry < entryCount; entry++) {
+      final var key = entries.get(entry);
+      if (key != REMOVED) keys[index++] = key;
+    }
+    return keys;
+  }
+
+  // endregion
+
+  // region Table helpers.
+
+  /**
+   * Find the slot holding a key.
+   *
+   * @param key the key to find
+   * @return the slot holding the key, or -1 if it is not in the set
+   */
+  private int slotOf(long key) {
+    final var mask = table.length() - 1;
+    for (var slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      final var value = table.get(slot);
+      if (value == EMPTY) return -1;
+      if (value > 0 && entries.get(value - 1) == key) return slot;
+    }
+  }
+
+  /** Rebuild the probing table from the live entries, dropping tombstones. */
+  private void rehash() {
+    table = columns.newIntColumn(tableCapacityFor(size + 1));
+    usedSlots = size;
+
+    final var mask = table.length() - 1;
+    for (var entry = 0; entry < entryCount; entry++) {
+      final var key = entries.get(entry);
+      if (key == REMOVED) continue;
+
+      var slot = hash(key) & mask;
+      while (table.get(slot) != EMPTY) slot = (slot + 1) & mask;
+      table.set(slot, entry + 1);
+    }
+  }
+
+  /**
+   * Get a power-of-two table capacity that keeps the load factor at most one half.
+   *
+   * @param expectedSize the number of keys to hold
+   * @return the table capacity
+   */
+  private static int tableCapacityFor(int expectedSize) {
+    return Integer.highestOneBit(Math.max(MINIMUM_CAPACITY, expectedSize * 2) - 1) << 1;
+  }
+
+  /**
+   * Hash a key (MurmurHash3 finalizer).
+   *
+   * @param key the key to hash
+   * @return the hash of the key
+   */
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+  // endregion
+}
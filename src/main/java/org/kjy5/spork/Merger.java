@@ -5,11 +5,11 @@ package org.kjy5.spork;
 
 import com.github.gumtreediff.tree.Tree;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Change set merger.
@@ -19,45 +19,130 @@ import java.util.stream.Collectors;
  * @author Kenneth Yang
  */
 public class Merger {
+  // region Constants.
+  /** Number of merged PCSs above which soft inconsistencies are removed in parallel. */
+  public static final int PARALLEL_THRESHOLD = 50_000;
+
+  // endregion
+
+  // region Merge methods.
+
   /**
    * Perform a Spork merge.
    *
+   * <p>Large merges (see {@link #PARALLEL_THRESHOLD}) are resolved in parallel.
+   *
    * @param baseChangeSet base branch change set
    * @param leftChangeSet left branch change set
    * @param rightChangeSet right branch change set
    */
   public static ChangeSet merge(
       ChangeSet baseChangeSet, ChangeSet leftChangeSet, ChangeSet rightChangeSet) {
-    // Union the three PCSs.
-    var mergePcsSet = new LinkedHashSet<>(baseChangeSet.pcsSet());
-    mergePcsSet.addAll(leftChangeSet.pcsSet());
-    mergePcsSet.addAll(rightChangeSet.pcsSet());
-
-    // Union the three content tuples.
-    var mergeContentTupleSet = new LinkedHashSet<>(baseChangeSet.contentTupleSet());
-    mergeContentTupleSet.addAll(leftChangeSet.contentTupleSet());
-    mergeContentTupleSet.addAll(rightChangeSet.contentTupleSet());
+    final var totalPcsCount =
+        baseChangeSet.pcsSet().size()
+            + leftChangeSet.pcsSet().size()
+            + rightChangeSet.pcsSet().size();
+    return merge(
+        baseChangeSet, leftChangeSet, rightChangeSet, totalPcsCount >= PARALLEL_THRESHOLD);
+  }
 
-    // Merged change set.
+  /**
+   * Perform a Spork merge.
+   *
+   * <p>PCSs can only be inconsistent with PCSs that share a child or successor node, so the merged
+   * PCSs split into independent components. In parallel mode, each component is resolved on the
+   * common fork-join pool. The result is the same as the sequential merge.
+   *
+   * @param baseChangeSet base branch change set
+   * @param leftChangeSet left branch change set
+   * @param rightChangeSet right branch change set
+   * @param parallel whether to remove soft inconsistencies in parallel
+   */
+  public static ChangeSet merge(
+      ChangeSet baseChangeSet,
+      ChangeSet leftChangeSet,
+      ChangeSet rightChangeSet,
+      boolean parallel) {
+    // Union the three PCSs, tagging each with the revisions it came from.
+    var mergePcsSet =
+        new PcsSet(
+            baseChangeSet.pcsSet().nodeIds(),
+            baseChangeSet.pcsSet().size()
+                + leftChangeSet.pcsSet().size()
+                + rightChangeSet.pcsSet().size());
+    mergePcsSet.addAll(baseChangeSet.pcsSet(), Revision.BASE);
+    mergePcsSet.addAll(leftChangeSet.pcsSet(), Revision.LEFT);
+    mergePcsSet.addAll(rightChangeSet.pcsSet(), Revision.RIGHT);
+
+    // Union the three content tuples, tagging each with the revisions it came from.
+    var mergeContentTupleSet = new ContentTupleSet();
+    mergeContentTupleSet.addAll(baseChangeSet.contentTupleSet(), Revision.BASE);
+    mergeContentTupleSet.addAll(leftChangeSet.contentTupleSet(), Revision.LEFT);
+    mergeContentTupleSet.addAll(rightChangeSet.contentTupleSet(), Revision.RIGHT);
+
+    // Merged change set (the input change sets are no longer needed past this point, since base
+    // membership is checked through the revision tags).
     var mergedChangeSet = new ChangeSet(mergePcsSet, mergeContentTupleSet);
 
-    System.out.format(
-        "%-10s%-10s%-15s%n",
-        "Raw", mergedChangeSet.pcsSet().size(), mergedChangeSet.contentTupleSet().size());
-
     // Remove soft-inconsistencies and mark hard-inconsistencies.
-    for (var pcs : new LinkedHashSet<>(mergedChangeSet.pcsSet())) {
-      // TODO: Algorithm doesn't say so but we should skip if the PCS is already removed.
-      if (!mergedChangeSet.pcsSet().contains(pcs)) continue;
-
-      removeSoftPcsInconsistencies(pcs, mergedChangeSet, baseChangeSet);
-      handleContent(pcs, mergedChangeSet, baseChangeSet);
+    if (parallel) {
+      removeSoftPcsInconsistenciesInParallel(mergePcsSet);
+    } else {
+      removeSoftPcsInconsistencies(mergePcsSet.toPackedArray(), mergePcsSet);
     }
 
+    // Resolve content once per node (content only depends on the node, not the PCS it came from).
+    handleContent(mergedChangeSet);
+
     // Return the merged change set.
     return mergedChangeSet;
   }
 
+  /**
+   * Remove soft PCS inconsistencies component by component in parallel.
+   *
+   * <p>Each component is resolved sequentially (in merge order) against its own PCS set, and the
+   * outcome is then written back to the merged PCS set.
+   *
+   * @param mergePcsSet the merged PCS set to update
+   */
+  private static void removeSoftPcsInconsistenciesInParallel(PcsSet mergePcsSet) {
+    final var allPcs = mergePcsSet.toPackedArray();
+    final var components = PcsComponents.of(allPcs, mergePcsSet.nodeIds());
+
+    // Resolve each component on its own PCS set (singletons can't be inconsistent).
+    final var resolvedPcsSets =
+        IntStream.range(0, components.count())
+            .parallel()
+            .mapToObj(
+                component -> {
+                  final var componentPcs = components.pcsOf(component);
+                  if (componentPcs.length <= 1) return null;
+
+                  final var componentPcsSet =
+                      new PcsSet(mergePcsSet.nodeIds(), componentPcs.length, true);
+                  for (var pcs : componentPcs) {
+                    componentPcsSet.add(pcs, mergePcsSet.revisionsOf(pcs));
+                  }
+                  removeSoftPcsInconsistencies(componentPcs, componentPcsSet);
+                  return componentPcsSet;
+                })
+            .toArray(PcsSet[]::new);
+
+    // Join the resolved components back into the merged PCS set.
+    for (var i = 0; i < allPcs.length; i++) {
+      final var resolvedPcsSet = resolvedPcsSets[components.componentOf(i)];
+      if (resolvedPcsSet == null) continue;
+
+      final var pcs = allPcs[i];
+      if (!resolvedPcsSet.contains(pcs)) {
+        mergePcsSet.remove(pcs);
+      } else if (resolvedPcsSet.hardInconsistencyOf(pcs) != PcsSet.NO_PCS) {
+        mergePcsSet.setHardInconsistency(pcs, resolvedPcsSet.hardInconsistencyOf(pcs));
+      }
+    }
+  }
+
   // endregion
 
   // region Spork-3DM methods.
@@ -65,31 +150,44 @@ public class Merger {
   /**
    * Remove PCS inconsistencies that are not caused by conflicting changes.
    *
-   * @param pcs the PCS to check for inconsistencies
-   * @param mergeChangeSet the change set to update
-   * @param baseChangeSet the base change set to check with
+   * @param allPcs the packed PCSs to check, in merge order
+   * @param mergePcsSet the PCS set to update
+   */
+  private static void removeSoftPcsInconsistencies(long[] allPcs, PcsSet mergePcsSet) {
+    for (var pcs : allPcs) {
+      // TODO: Algorithm doesn't say so but we should skip if the PCS is already removed.
+      if (!mergePcsSet.contains(pcs)) continue;
+
+      removeSoftPcsInconsistencies(pcs, mergePcsSet);
+    }
+  }
+
+  /**
+   * Remove PCS inconsistencies that are not caused by conflicting changes.
+   *
+   * @param pcs the packed PCS to check for inconsistencies
+   * @param mergePcsSet the PCS set to update
    */
-  private static void removeSoftPcsInconsistencies(
-      Pcs pcs, ChangeSet mergeChangeSet, ChangeSet baseChangeSet) {
+  private static void removeSoftPcsInconsistencies(long pcs, PcsSet mergePcsSet) {
     // Get all inconsistent PCSs.
-    var inconsistentPcs = getAllInconsistentPcs(pcs, mergeChangeSet);
+    var inconsistentPcs = getAllInconsistentPcs(pcs, mergePcsSet);
 
     // Short-circuit if there are no inconsistencies.
-    if (inconsistentPcs.isEmpty()) return;
+    if (inconsistentPcs.length == 0) return;
 
     // Short-circuit if this pcs is in the base change set (remove it from the merge change set).
-    if (baseChangeSet.pcsSet().contains(pcs)) {
-      mergeChangeSet.pcsSet().remove(pcs);
+    if (Revision.BASE.isIn(mergePcsSet.revisionsOf(pcs))) {
+      mergePcsSet.remove(pcs);
       return;
     }
 
     // Remove all inconsistent PCSs from the merge change set if they are in the base change set.
     for (var otherPcs : inconsistentPcs) {
-      if (baseChangeSet.pcsSet().contains(otherPcs)) {
-        mergeChangeSet.pcsSet().remove(otherPcs);
+      if (Revision.BASE.isIn(mergePcsSet.revisionsOf(otherPcs))) {
+        mergePcsSet.remove(otherPcs);
       } else {
         // Otherwise, mark the PCS as a hard inconsistency.
-        hardPcsInconsistency(pcs, otherPcs, mergeChangeSet);
+        hardPcsInconsistency(pcs, otherPcs, mergePcsSet);
       }
     }
   }
@@ -97,14 +195,15 @@ public class Merger {
   /**
    * Handle content inconsistencies.
    *
-   * @param pcs the PCS to check for content inconsistencies
+   * <p>Every node with content is resolved exactly once, rather than once for every PCS it appears
+   * in.
+   *
    * @param mergeChangeSet the change set to update
-   * @param baseChangeSet the base change set to check with
    */
-  private static void handleContent(Pcs pcs, ChangeSet mergeChangeSet, ChangeSet baseChangeSet) {
-    removeSoftContentInconsistencies(pcs.parent(), mergeChangeSet, baseChangeSet);
-    removeSoftContentInconsistencies(pcs.child(), mergeChangeSet, baseChangeSet);
-    removeSoftContentInconsistencies(pcs.successor(), mergeChangeSet, baseChangeSet);
+  private static void handleContent(ChangeSet mergeChangeSet) {
+    for (var node : new ArrayList<>(mergeChangeSet.contentTupleSet().nodes())) {
+      removeSoftContentInconsistencies(node, mergeChangeSet);
+    }
   }
 
   /**
@@ -112,10 +211,8 @@ public class Merger {
    *
    * @param tree the tree to check for content inconsistencies
    * @param mergeChangeSet the change set to update
-   * @param baseChangeSet the base change set to check with
    */
-  private static void removeSoftContentInconsistencies(
-      Tree tree, ChangeSet mergeChangeSet, ChangeSet baseChangeSet) {
+  private static void removeSoftContentInconsistencies(Tree tree, ChangeSet mergeChangeSet) {
     var contentTuples = getContentTuples(tree, mergeChangeSet);
 
     // Short-circuit if there are one or fewer content tuples (no inconsistencies).
@@ -124,7 +221,10 @@ public class Merger {
     // Get all content tuples not in the base change set.
     var nonBaseContentTuples =
         contentTuples.stream()
-            .filter(contentTuple -> !baseChangeSet.contentTupleSet().contains(contentTuple))
+            .filter(
+                contentTuple ->
+                    !Revision.BASE.isIn(
+                        mergeChangeSet.contentTupleSet().revisionsOf(contentTuple)))
             .collect(Collectors.toUnmodifiableSet());
 
     // Update content tuples with non-base content tuples.
@@ -145,44 +245,50 @@ public class Merger {
    * Get inconsistent PCSs inside a change set given a PCS.
    *
    * <p>If two PCSs have the same parent, both children and both successors must be different. If
-   * two PCSs have different parents, all children and successors must be different.
+   * two PCSs have different parents, all children and successors must be different. Either way, an
+   * inconsistent PCS must share a child or successor node with the given PCS, so only those PCSs are
+   * checked.
    *
-   * @param pcs the PCS to find inconsistencies with
-   * @param changeSet the change set to search in
-   * @return the set of inconsistent PCSs
+   * @param pcs the packed PCS to find inconsistencies with
+   * @param pcsSet the PCS set to search in
+   * @return the inconsistent packed PCSs, in insertion order
    */
-  private static Collection<Pcs> getAllInconsistentPcs(Pcs pcs, ChangeSet changeSet) {
-    var inconsistentPcs = new LinkedHashSet<Pcs>();
-
-    // Loop through change set and find inconsistencies.
-    for (var otherPcs : changeSet.pcsSet()) {
-      // Skip if it's the same PCS.
-      if (pcs == otherPcs) continue;
+  private static long[] getAllInconsistentPcs(long pcs, PcsSet pcsSet) {
+    var candidatePcs = pcsSet.sharingNodeWith(pcs);
+    var inconsistentCount = 0;
 
+    // Loop through PCSs sharing a node and find inconsistencies (compacting in place).
+    for (var otherPcs : candidatePcs) {
       // Check criteria and add.
-      if (isInconsistent(pcs, otherPcs)) {
-        inconsistentPcs.add(otherPcs);
+      if (isInconsistent(pcs, otherPcs, pcsSet.nodeIds().packedPcs())) {
+        candidatePcs[inconsistentCount++] = otherPcs;
       }
     }
 
-    return Collections.unmodifiableSet(inconsistentPcs);
+    return Arrays.copyOf(candidatePcs, inconsistentCount);
   }
 
   /**
    * Check if two PCSs are inconsistent.
    *
-   * @param pcs the first PCS
-   * @param otherPcs the second PCS
+   * @param pcs the first packed PCS
+   * @param otherPcs the second packed PCS
+   * @param packing the packing of both PCSs
    * @return true if the PCSs are inconsistent, false otherwise
    */
-  private static boolean isInconsistent(Pcs pcs, Pcs otherPcs) {
-    return (pcs.parent() == otherPcs.parent()
-            && (pcs.child() == otherPcs.child() || pcs.successor() == otherPcs.successor()))
-        || (pcs.parent() != otherPcs.parent()
-            && (pcs.child() == otherPcs.child()
-                || pcs.child() == otherPcs.successor()
-                || pcs.successor() == otherPcs.successor()
-                || pcs.successor() == otherPcs.child()));
+  private static boolean isInconsistent(long pcs, long otherPcs, PackedPcs packing) {
+    final var parent = packing.parent(pcs);
+    final var child = packing.child(pcs);
+    final var successor = packing.successor(pcs);
+    final var otherParent = packing.parent(otherPcs);
+    final var otherChild = packing.child(otherPcs);
+    final var otherSuccessor = packing.successor(otherPcs);
+    return (parent == otherParent && (child == otherChild || successor == otherSuccessor))
+        || (parent != otherParent
+            && (child == otherChild
+                || child == otherSuccessor
+                || successor == otherSuccessor
+                || successor == otherChild));
   }
 
   /**
@@ -193,9 +299,7 @@ public class Merger {
    * @return the set of content tuples related to the tree
    */
   private static Collection<ContentTuple> getContentTuples(Tree tree, ChangeSet changeSet) {
-    return changeSet.contentTupleSet().stream()
-        .filter(contentTuple -> contentTuple.node().equals(tree))
-        .collect(Collectors.toUnmodifiableSet());
+    return Set.copyOf(changeSet.contentTupleSet().withNode(tree));
   }
 
   /**
@@ -206,45 +310,42 @@ public class Merger {
    * @param changeSet the change set to update the content tuples in
    */
   private static void setContentTuples(Tree node, Set<ContentTuple> contents, ChangeSet changeSet) {
-    // Remove all content tuples associated with the tree (they're to be replaced).
-    changeSet.contentTupleSet().removeIf(contentTuple -> contentTuple.node().equals(node));
-
-    // Filter for content tuples associated with the tree and add them to the change set.
-    changeSet
-        .contentTupleSet()
-        .addAll(
-            contents.stream().filter(contentTuple -> contentTuple.node().equals(node)).toList());
+    // Remove the content tuples associated with the tree that are not being kept (the kept ones
+    // stay in place with their revision tags).
+    for (var contentTuple : getContentTuples(node, changeSet)) {
+      if (!contents.contains(contentTuple)) changeSet.contentTupleSet().remove(contentTuple);
+    }
   }
 
   /**
    * Update two PCSs as being in conflict with each other.
    *
-   * @param pcs the PCS to mark as inconsistent
-   * @param otherPcs the PCS to mark as inconsistent with
-   * @param mergeChangeSet the change set these PCSs are in
+   * <p>Conflicts are recorded in the PCS set's side table, so the PCSs stay in place.
+   *
+   * @param pcs the packed PCS to mark as inconsistent
+   * @param otherPcs the packed PCS to mark as inconsistent with
+   * @param pcsSet the PCS set these PCSs are in
    */
-  private static void hardPcsInconsistency(Pcs pcs, Pcs otherPcs, ChangeSet mergeChangeSet) {
+  private static void hardPcsInconsistency(long pcs, long otherPcs, PcsSet pcsSet) {
     // Short-circuit if this PCS already has a hard inconsistency.
-    if (pcs.hardInconsistencyWith() != null) return;
+    if (pcsSet.hardInconsistencyOf(pcs) != PcsSet.NO_PCS) return;
 
-    // Mark the PCS as inconsistent with the other PCS and replace the original from the change set.
-    var updatedPcs = new Pcs(pcs.parent(), pcs.child(), pcs.successor(), otherPcs);
-    mergeChangeSet.pcsSet().remove(pcs);
-    mergeChangeSet.pcsSet().add(updatedPcs);
+    // Mark the PCS as inconsistent with the other PCS.
+    pcsSet.setHardInconsistency(pcs, otherPcs);
 
     // Short-circuit if the other PCS is already inconsistent.
-    if (otherPcs.hardInconsistencyWith() != null) return;
+    if (pcsSet.hardInconsistencyOf(otherPcs) != PcsSet.NO_PCS) return;
 
-    // Mark the other PCS as inconsistent with this PCS and replace the original from the change
-    // set.
-    var updatedOtherPcs = new Pcs(otherPcs.parent(), otherPcs.child(), otherPcs.successor(), pcs);
-    mergeChangeSet.pcsSet().remove(otherPcs);
-    mergeChangeSet.pcsSet().add(updatedOtherPcs);
+    // Mark the other PCS as inconsistent with this PCS.
+    pcsSet.setHardInconsistency(otherPcs, pcs);
   }
 
   /**
    * Update two content tuples as being in conflict with each other.
    *
+   * <p>Conflicts are recorded in the content tuple set's side table, so the content tuples stay in
+   * place.
+   *
    * @param contentTuples the content tuples to mark as inconsistent with each other
    * @param mergeChangeSet the change set these content tuples are in
    */
@@ -262,17 +363,9 @@ public class Merger {
     var first = contentTuplesList.get(0);
     var second = contentTuplesList.get(1);
 
-    // Mark the first content tuple as inconsistent with the second and replace the original from
-    // the change set.
-    var updatedFirstContentTuple = new ContentTuple(first.node(), first.content(), second);
-    mergeChangeSet.contentTupleSet().remove(first);
-    mergeChangeSet.contentTupleSet().add(updatedFirstContentTuple);
-
-    // Mark the second content tuple as inconsistent with the first and replace the original from
-    // the change set.
-    var updatedSecondContentTuple = new ContentTuple(second.node(), second.content(), first);
-    mergeChangeSet.contentTupleSet().remove(second);
-    mergeChangeSet.contentTupleSet().add(updatedSecondContentTuple);
+    // Mark the content tuples as inconsistent with each other.
+    mergeChangeSet.contentTupleSet().setHardInconsistency(first, second);
+    mergeChangeSet.contentTupleSet().setHardInconsistency(second, first);
   }
   // endregion
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import com.github.gumtreediff.tree.Tree;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Dense integer IDs for the nodes of a merge.
+ *
+ * <p>Every class representative and virtual node is numbered the first time it is seen, starting at
+ * 0. The merge engine works on these IDs and only maps back to {@link Tree} nodes when a tree has
+ * to be rebuilt. The numbering also owns the packing of the merge's PCS triples (see {@link
+ * PackedPcs}), which refer to these IDs.
+ *
+ * <p>A merge can number up to {@link #MAX_ID} + 1 (about a billion) nodes.
+ *
+ * @author Kenneth Yang
+ */
+public class NodeIds {
+  // region Constants.
+  /** Value returned when a node has not been numbered. */
+  public static final int NO_ID = -1;
+
+  /** The largest ID (the node lookup array doubles in size, so it stays below 2^31 elements). */
+  public static final int MAX_ID = (1 << 30) - 1;
+
+  // endregion
+
+  // region Fields.
+  private final Map<Tree, Integer> nodeToId = new IdentityHashMap<>();
+  private Tree[] idToNode = new Tree[1024];
+  private final PackedPcs packedPcs = new PackedPcs();
+
+  // endregion
+
+  /**
+   * Get the ID of a node, numbering it if it has not been seen before.
+   *
+   * @param node the node to get the ID of
+   * @return the ID of the node
+   */
+  public int idOf(Tree node) {
+    final var id = nodeToId.get(node);
+    if (id != null) return id;
+
+    // Number the node.
+    final var newId = nodeToId.size();
+    if (newId > MAX_ID) {
+      throw new IllegalStateException("Too many nodes to number (maximum is " + MAX_ID + ").");
+    }
+    if (newId == idToNode.length) idToNode = Arrays.copyOf(idToNode, newId * 2);
+    idToNode[newId] = node;
+    nodeToId.put(node, newId);
+    return newId;
+  }
+
+  /**
+   * Find the ID of a node without numbering it.
+   *
+   * @param node the node to find the ID of
+   * @return the ID of the node, or {@link #NO_ID} if it has not been numbered
+   */
+  public int find(Tree node) {
+    final var id = nodeToId.get(node);
+    return id == null ? NO_ID : id;
+  }
+
+  /**
+   * Get the node with an ID.
+   *
+   * @param id the ID of the node
+   * @return the node with the ID
+   */
+  public Tree nodeOf(int id) {
+    return idToNode[id];
+  }
+
+  /**
+   * Get the packing of the PCS triples that refer to these IDs.
+   *
+   * @return the PCS packing of the merge
+   */
+  PackedPcs packedPcs() {
+    return packedPcs;
+  }
+
+  /**
+   * Get the number of nodes that have been numbered.
+   *
+   * @return the number of numbered nodes (one more than the largest ID)
+   */
+  public int size() {
+    return nodeToId.size();
+  }
+}
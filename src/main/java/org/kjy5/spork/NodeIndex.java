@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+/**
+ * A primitive multimap from node IDs to entry indexes.
+ *
+ * <p>Values for a node are kept in a singly linked list threaded through flat {@code int} arrays
+ * (most recent first). Values are never removed; callers filter out stale entries when reading.
+ *
+ * <p>List heads are stored in an array indexed by node ID, or, for small indexes over a few nodes
+ * with large IDs, in an open-addressing table keyed by node ID. All arrays are {@link Columns}, on
+ * or off the heap.
+ *
+ * @author Kenneth Yang
+ */
+final class NodeIndex {
+  // region Constants.
+  /** Link value marking the end of a list. */
+  static final int END = -1;
+
+  private static final int MINIMUM_CAPACITY = 16;
+
+  // endregion
+
+  // region Fields.
+  private final Columns columns;
+  private final boolean sparse;
+
+  /** Dense heads by node ID, or sparse heads by table slot. */
+  private Columns.IntColumn heads;
+
+  /** Sparse table of node ID + 1 (0 for empty slots). */
+  private Columns.IntColumn headNodes;
+
+  private int headCount;
+  private Columns.IntColumn next;
+  private Columns.IntColumn values;
+  private int count;
+
+  // endregion
+
+  /**
+   * Create an empty index.
+   *
+   * @param expectedSize the number of values expected to be added
+   * @param sparse whether to key heads by a hash table rather than an array indexed by node ID
+   * @param columns the storage for the index
+   */
+  NodeIndex(int expectedSize, boolean sparse, Columns columns) {
+    this.columns = columns;
+    this.sparse = sparse;
+    heads = columns.newIntColumn(MINIMUM_CAPACITY);
+    heads.fill(0, MINIMUM_CAPACITY, END);
+    if (sparse) headNodes = columns.newIntColumn(MINIMUM_CAPACITY);
+    next = columns.newIntColumn(Math.max(expectedSize, MINIMUM_CAPACITY));
+    values = columns.newIntColumn(next.length());
+  }
+
+  /**
+   * Add a value for a node.
+   *
+   * @param node the node ID
+   * @param value the value to add
+   */
+  void add(int node, int value) {
+    // Grow storage.
+    final var headIndex = sparse ? addSparseHead(node) : growDenseHeads(node);
+    if (count == next.length()) {
+      next = next.resize(count * 2);
+      values = values.resize(count * 2);
+    }
+
+    // Prepend to the node's list.
+    values.set(count, value);
+    next.set(count, heads.get(headIndex));
+    heads.set(headIndex, count);
+    count++;
+  }
+
+  /**
+   * Get the first link of a node's list.
+   *
+   * @param node the node ID
+   * @return the first link, or {@link #END} if the node has no values
+   */
+  int head(int node) {
+    if (sparse) {
+      final var slot = sparseSlotOf(headNodes, node);
+      return headNodes.get(slot) == 0 ? END : heads.get(slot);
+    }
+    return node < heads.length() ? heads.get(node) : END;
+  }
+
+  /**
+   * Get the link after a link.
+   *
+   * @param link the current link
+   * @return the next link, or {@link #END} at the end of the list
+   */
+  int next(int link) {
+    return next.get(link);
+  }
+
+  /**
+   * Get the value at a link.
+   *
+   * @param link the link
+   * @return the value at the link
+   */
+  int value(int link) {
+    return values.get(link);
+  }
+
+  // region Head helpers.
+
+  /**
+   * Make room for a node in the dense heads array.
+   *
+   * @param node the node ID
+   * @return the index of the node's head
+   */
+  private int growDenseHeads(int node) {
+    if (node >= heads.length()) {
+      final var oldLength = heads.length();
+      heads = heads.resize(Math.max(node + 1, oldLength * 2));
+      heads.fill(oldLength, heads.length(), END);
+    }
+    return node;
+  }
+
+  /**
+   * Find or insert a node in the sparse heads table.
+   *
+   * @param node the node ID
+   * @return the index of the node's head
+   */
+  private int addSparseHead(int node) {
+    var slot = sparseSlotOf(headNodes, node);
+    if (headNodes.get(slot) != 0) return slot;
+
+    // Rehash at half load.
+    if ((headCount + 1) * 2 > headNodes.length()) {
+      final var oldHeadNodes = headNodes;
+      final var oldHeads = heads;
+      headNodes = columns.newIntColumn(oldHeadNodes.length() * 2);
+      heads = columns.newIntColumn(oldHeadNodes.length() * 2);
+      for (var oldSlot = 0; oldSlot < oldHeadNodes.length(); oldSlot++) {
+        final var oldHeadNode = oldHeadNodes.get(oldSlot);
+        if (oldHeadNode == 0) continue;
+
+        final var newSlot = sparseSlotOf(headNodes, oldHeadNode - 1);
+        headNodes.set(newSlot, oldHeadNode);
+        heads.set(newSlot, oldHeads.get(oldSlot));
+      }
+      slot = sparseSlotOf(headNodes, node);
+    }
+
+    headNodes.set(slot, node + 1);
+    heads.set(slot, END);
+    headCount++;
+    return slot;
+  }
+
+  /**
+   * Find the slot of a node in a sparse heads table (linear probing).
+   *
+   * @param headNodes the sparse table of node ID + 1
+   * @param node the node ID
+   * @return the slot holding the node, or the empty slot where it would be inserted
+   */
+  private static int sparseSlotOf(Columns.IntColumn headNodes, int node) {
+    final var mask = headNodes.length() - 1;
+    final var hash = node * 0x9E3779B9;
+    var slot = (hash ^ (hash >>> 16)) & mask;
+    while (headNodes.get(slot) != 0 && headNodes.get(slot) != node + 1) slot = (slot + 1) & mask;
+    return slot;
+  }
+  // endregion
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Columns stored in native memory segments off the heap.
+ *
+ * <p>Every column gets its own automatic arena, so its memory is freed once the column (for
+ * example, one replaced by {@link LongColumn#resize(int)}) is no longer reachable, and it can be
+ * read from any thread. The garbage collector only sees the small column objects, not their
+ * contents.
+ *
+ * @author Kenneth Yang
+ */
+final class OffHeapColumns implements Columns {
+  // region Constants.
+  /** The shared off-heap column storage. */
+  static final OffHeapColumns INSTANCE = new OffHeapColumns();
+
+  // endregion
+
+  private OffHeapColumns() {}
+
+  // region Column factories.
+
+  @Override
+  public LongColumn newLongColumn(int length) {
+    return new OffHeapLongColumn(allocate(length, ValueLayout.JAVA_LONG), length);
+  }
+
+  @Override
+  public IntColumn newIntColumn(int length) {
+    return new OffHeapIntColumn(allocate(length, ValueLayout.JAVA_INT), length);
+  }
+
+  @Override
+  public ByteColumn newByteColumn(int length) {
+    return new OffHeapByteColumn(allocate(length, ValueLayout.JAVA_BYTE), length);
+  }
+
+  /**
+   * Allocate a zero-filled segment in a new automatic arena.
+   *
+   * @param length the number of elements
+   * @param layout the layout of an element
+   * @return the new segment
+   */
+  private static MemorySegment allocate(int length, ValueLayout layout) {
+    return Arena.ofAuto().allocate(length * layout.byteSize(), layout.byteAlignment());
+  }
+
+  /**
+   * Copy a segment into a new zero-filled segment of a different length.
+   *
+   * @param segment the segment to copy
+   * @param length the number of elements in the segment
+   * @param newLength the number of elements in the new segment
+   * @param layout the layout of an element
+   * @return the new segment
+   */
+  private static MemorySegment resize(
+      MemorySegment segment, int length, int newLength, ValueLayout layout) {
+    final var resized = allocate(newLength, layout);
+    MemorySegment.copy(segment, 0, resized, 0, Math.min(length, newLength) * layout.byteSize());
+    return resized;
+  }
+
+  // endregion
+
+  // region Columns.
+
+  /**
+   * A column of {@code long}s in a memory segment.
+   *
+   * @param segment the backing segment
+   * @param length the number of elements
+   */
+  private record OffHeapLongColumn(MemorySegment segment, int length) implements LongColumn {
+    @Override
+    public long get(int index) {
+      return segment.getAtIndex(ValueLayout.JAVA_LONG, index);
+    }
+
+    @Override
+    public void set(int index, long value) {
+      segment.setAtIndex(ValueLayout.JAVA_LONG, index, value);
+    }
+
+    @Override
+    public LongColumn resize(int newLength) {
+      return new OffHeapLongColumn(
+          OffHeapColumns.resize(segment, length, newLength, ValueLayout.JAVA_LONG), newLength);
+    }
+  }
+
+  /**
+   * A column of {@code int}s in a memory segment.
+   *
+   * @param segment the backing segment
+   * @param length the number of elements
+   */
+  private record OffHeapIntColumn(MemorySegment segment, int length) implements IntColumn {
+    @Override
+    public int get(int index) {
+      return segment.getAtIndex(ValueLayout.JAVA_INT, index);
+    }
+
+    @Override
+    public void set(int index, int value) {
+      segment.setAtIndex(ValueLayout.JAVA_INT, index, value);
+    }
+
+    @Override
+    public void fill(int fromIndex, int toIndex, int value) {
+      // Values with four identical bytes (such as 0 and -1) can be filled bytewise.
+      final var bytes = (byte) value;
+      if (value == (bytes & 0xff) * 0x01010101) {
+        final var byteSize = ValueLayout.JAVA_INT.byteSize();
+        segment.asSlice(fromIndex * byteSize, (toIndex - fromIndex) * byteSize).fill(bytes);
+        return;
+      }
+
+      for (var index = fromIndex; index < toIndex; index++) set(index, value);
+    }
+
+    @Override
+    public IntColumn resize(int newLength) {
+      return new OffHeapIntColumn(
+          OffHeapColumns.resize(segment, length, newLength, ValueLayout.JAVA_INT), newLength);
+    }
+  }
+
+  /**
+   * A column of {@code byte}s in a memory segment.
+   *
+   * @param segment the backing segment
+   * @param length the number of elements
+   */
+  private record OffHeapByteColumn(MemorySegment segment, int length) implements ByteColumn {
+    @Override
+    public byte get(int index) {
+      return segment.get(ValueLayout.JAVA_BYTE, index);
+    }
+
+    @Override
+    public void set(int index, byte value) {
+      segment.set(ValueLayout.JAVA_BYTE, index, value);
+    }
+
+    @Override
+    public ByteColumn resize(int newLength) {
+      return new OffHeapByteColumn(
+          OffHeapColumns.resize(segment, length, newLength, ValueLayout.JAVA_BYTE), newLength);
+    }
+  }
+  // endregion
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import java.util.Arrays;
+
+/**
+ * Packing of the PCS triples of a merge into single {@code long}s.
+ *
+ * <p>A triple whose node IDs all fit in 20 bits is stored inline, in three 20-bit fields. Any other
+ * triple is interned in a table of wide triples and packed as its index in that table (with {@link
+ * #WIDE} set), so merges are not limited by the width of the inline fields. Equal triples always
+ * pack to the same value, and packed PCSs are always non-negative.
+ *
+ * <p>Typical merges number fewer than {@link #MAX_INLINE_NODE_ID} nodes and never touch the table.
+ * The table holds up to {@link #MAX_WIDE_PCS_COUNT} (about 537 million) triples, far more than the
+ * trees they come from would fit in memory.
+ *
+ * <p>Packing is not thread-safe, but once a merge's change sets are built, PCSs can be unpacked
+ * from any number of threads.
+ *
+ * @see org.kjy5.spork.NodeIds
+ * @author Kenneth Yang
+ */
+final class PackedPcs {
+  // region Constants.
+  private static final int INLINE_NODE_ID_BITS = 20;
+
+  /** The largest node ID that can be packed inline. */
+  static final int MAX_INLINE_NODE_ID = (1 << INLINE_NODE_ID_BITS) - 1;
+
+  /** Flag marking a packed PCS as an index into the wide triple table. */
+  static final long WIDE = 1L << 62;
+
+  /** The largest number of wide triples (the interning table stays at most half full). */
+  static final int MAX_WIDE_PCS_COUNT = 1 << 29;
+
+  /** Value used where there is no PCS. */
+  static final long NO_PCS = -1L;
+
+  private static final int MINIMUM_CAPACITY = 16;
+
+  /** Value of an empty slot in the interning table. */
+  private static final int EMPTY = 0;
+
+  // endregion
+
+  // region Fields.
+
+  /** Parent, child, and successor IDs of each wide triple. */
+  private int[] wideTriples = new int[3 * MINIMUM_CAPACITY];
+
+  private int wideCount;
+
+  /** Linear-probing table of wide triple index + 1 ({@link #EMPTY} otherwise). */
+  private int[] wideTable = new int[2 * MINIMUM_CAPACITY];
+
+  // endregion
+
+  // region Packing methods.
+
+  /**
+   * Pack a PCS triple, interning it if it does not fit inline.
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return the packed PCS
+   * @throws IllegalStateException if the wide triple table is full
+   */
+  long pack(int parent, int child, int successor) {
+    if (fitsInline(parent, child, successor)) return packInline(parent, child, successor);
+
+    final var slot = wideSlotOf(parent, child, successor);
+    if (wideTable[slot] != EMPTY) return WIDE | (wideTable[slot] - 1);
+
+    // Intern the triple.
+    if (wideCount == MAX_WIDE_PCS_COUNT) {
+      throw new IllegalStateException(
+          "Too many PCSs to pack (maximum is " + MAX_WIDE_PCS_COUNT + " wide PCSs).");
+    }
+    if (3 * wideCount == wideTriples.length) {
+      wideTriples = Arrays.copyOf(wideTriples, 2 * wideTriples.length);
+    }
+    final var index = wideCount++;
+    wideTriples[3 * index] = parent;
+    wideTriples[3 * index + 1] = child;
+    wideTriples[3 * index + 2] = successor;
+    wideTable[slot] = index + 1;
+    if (2 * wideCount > wideTable.length) rehash();
+    return WIDE | index;
+  }
+
+  /**
+   * Pack a PCS triple without interning it.
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return the packed PCS, or {@link #NO_PCS} if the triple has never been packed and does not fit
+   *     inline
+   */
+  long find(int parent, int child, int successor) {
+    if (fitsInline(parent, child, successor)) return packInline(parent, child, successor);
+
+    final var index = wideTable[wideSlotOf(parent, child, successor)] - 1;
+    return index < 0 ? NO_PCS : WIDE | index;
+  }
+
+  /**
+   * Get the parent node ID of a packed PCS.
+   *
+   * @param pcs the packed PCS
+   * @return the parent node ID
+   */
+  int parent(long pcs) {
+    if ((pcs & WIDE) != 0) return wideTriples[3 * (int) (pcs & ~WIDE)];
+    return (int) (pcs >>> (2 * INLINE_NODE_ID_BITS));
+  }
+
+  /**
+   * Get the child node ID of a packed PCS.
+   *
+   * @param pcs the packed PCS
+   * @return the child node ID
+   */
+  int child(long pcs) {
+    if ((pcs & WIDE) != 0) return wideTriples[3 * (int) (pcs & ~WIDE) + 1];
+    return (int) ((pcs >>> INLINE_NODE_ID_BITS) & MAX_INLINE_NODE_ID);
+  }
+
+  /**
+   * Get the successor node ID of a packed PCS.
+   *
+   * @param pcs the packed PCS
+   * @return the successor node ID
+   */
+  int successor(long pcs) {
+    if ((pcs & WIDE) != 0) return wideTriples[3 * (int) (pcs & ~WIDE) + 2];
+    return (int) (pcs & MAX_INLINE_NODE_ID);
+  }
+
+  /**
+   * Get the number of interned wide triples.
+   *
+   * @return the number of packed PCSs that did not fit inline
+   */
+  int wideCount() {
+    return wideCount;
+  }
+
+  // endregion
+
+  // region Packing helpers.
+
+  /**
+   * Check if a triple fits inline.
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return true if all three node IDs fit in an inline field, false otherwise
+   */
+  private static boolean fitsInline(int parent, int child, int successor) {
+    return (parent | child | successor) >>> INLINE_NODE_ID_BITS == 0;
+  }
+
+  /**
+   * Pack a triple inline.
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return the packed PCS
+   */
+  private static long packInline(int parent, int child, int successor) {
+    return ((long) parent << (2 * INLINE_NODE_ID_BITS))
+        | ((long) child << INLINE_NODE_ID_BITS)
+        | successor;
+  }
+
+  /**
+   * Find the interning table slot of a wide triple.
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return the slot holding the triple, or the empty slot it would be interned in
+   */
+  private int wideSlotOf(int parent, int child, int successor) {
+    final var mask = wideTable.length - 1;
+    for (var slot = hash(parent, child, successor) & mask; ; slot = (slot + 1) & mask) {
+      final var index = wideTable[slot] - 1;
+      if (index < 0
+          || (wideTriples[3 * index] == parent
+              && wideTriples[3 * index + 1] == child
+              && wideTriples[3 * index + 2] == successor)) {
+        return slot;
+      }
+    }
+  }
+
+  /** Double the interning table. */
+  private void rehash() {
+    wideTable = new int[2 * wideTable.length];
+    final var mask = wideTable.length - 1;
+    for (var index = 0; index < wideCount; index++) {
+      var slot =
+          hash(wideTriples[3 * index], wideTriples[3 * index + 1], wideTriples[3 * index + 2])
+              & mask;
+      while (wideTable[slot] != EMPTY) slot = (slot + 1) & mask;
+      wideTable[slot] = index + 1;
+    }
+  }
+
+  /**
+   * Hash a triple (MurmurHash3 finalizer over the mixed IDs).
+   *
+   * @param parent the parent node ID
+   * @param child the child node ID
+   * @param successor the successor node ID
+   * @return the hash of the triple
+   */
+  private static int hash(int parent, int child, int successor) {
+    var key = ((long) parent * 0x9e3779b97f4a7c15L) ^ ((long) child << 32 | successor);
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+  // endregion
+}
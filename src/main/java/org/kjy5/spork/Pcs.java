@@ -8,24 +8,15 @@ import com.github.gumtreediff.tree.Tree;
 /**
  * A Spork parent-child-successor triple.
  *
+ * <p>Hard inconsistencies between PCSs are kept by the {@link PcsSet} the PCS is in, so the triple
+ * itself is immutable.
+ *
  * @param parent the parent node
  * @param child the child node
  * @param successor the successor node
- * @param hardInconsistencyWith the hard inconsistency with another PCS triple, if any
  * @author Kenneth Yang
  */
-public record Pcs(Tree parent, Tree child, Tree successor, Pcs hardInconsistencyWith) {
-
-  /**
-   * Construct a PCS triple on required fields.
-   *
-   * @param parent the parent node.
-   * @param child the child node.
-   * @param successor the successor node.
-   */
-  public Pcs(Tree parent, Tree child, Tree successor) {
-    this(parent, child, successor, null);
-  }
+public record Pcs(Tree parent, Tree child, Tree successor) {
 
   /**
    * Print the PCS triple.
@@ -50,8 +41,6 @@ public record Pcs(Tree parent, Tree child, Tree successor, Pcs hardInconsistency
         + successor
         + "("
         + Integer.toHexString(System.identityHashCode(successor))
-        + ")"
-        + "\t"
-        + hardInconsistencyWith;
+        + ")";
   }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import java.util.Arrays;
+
+/**
+ * Independent components of a list of PCSs.
+ *
+ * <p>Two PCSs are in the same component if they are connected through shared child or successor
+ * nodes. Since PCSs can only be inconsistent when they share a child or successor node, components
+ * can be resolved independently of each other.
+ *
+ * @author Kenneth Yang
+ */
+final class PcsComponents {
+  // region Fields.
+  private final int[] pcsComponents;
+  private final int[] componentOffsets;
+  private final long[] pcsByComponent;
+
+  // endregion
+
+  /**
+   * Create components from their grouping.
+   *
+   * @param pcsComponents the component of each PCS
+   * @param componentOffsets the start of each component in the grouped PCSs (plus an end offset)
+   * @param pcsByComponent the PCSs grouped by component, in their original order
+   */
+  private PcsComponents(int[] pcsComponents, int[] componentOffsets, long[] pcsByComponent) {
+    this.pcsComponents = pcsComponents;
+    this.componentOffsets = componentOffsets;
+    this.pcsByComponent = pcsByComponent;
+  }
+
+  /**
+   * Find the components of a list of PCSs.
+   *
+   * @param allPcs the packed PCSs
+   * @param nodeIds the node numbering the PCSs refer to
+   * @return the components of the PCSs
+   */
+  static PcsComponents of(long[] allPcs, NodeIds nodeIds) {
+    final var packing = nodeIds.packedPcs();
+    final var nodeCount = nodeIds.size();
+
+    // Union the child and successor nodes of every PCS.
+    final var nodeParents = new int[nodeCount];
+    for (var node = 0; node < nodeCount; node++) nodeParents[node] = node;
+    for (var pcs : allPcs) {
+      final var childRoot = find(nodeParents, packing.child(pcs));
+      final var successorRoot = find(nodeParents, packing.successor(pcs));
+      if (childRoot != successorRoot) nodeParents[childRoot] = successorRoot;
+    }
+
+    // Number the components in order of first appearance.
+    final var rootComponents = new int[nodeCount];
+    Arrays.fill(rootComponents, -1);
+    final var pcsComponents = new int[allPcs.length];
+    var componentCount = 0;
+    for (var i = 0; i < allPcs.length; i++) {
+      final var root = find(nodeParents, packing.child(allPcs[i]));
+      if (rootComponents[root] < 0) rootComponents[root] = componentCount++;
+      pcsComponents[i] = rootComponents[root];
+    }
+
+    // Group PCSs by component with a stable counting sort.
+    final var componentOffsets = new int[componentCount + 1];
+    for (var component : pcsComponents) componentOffsets[component + 1]++;
+    for (var component = 0; component < componentCount; component++) {
+      componentOffsets[component + 1] += componentOffsets[component];
+    }
+    final var nextPositions = Arrays.copyOf(componentOffsets, componentCount);
+    final var pcsByComponent = new long[allPcs.length];
+    for (var i = 0; i < allPcs.length; i++) {
+      pcsByComponent[nextPositions[pcsComponents[i]]++] = allPcs[i];
+    }
+
+    return new PcsComponents(pcsComponents, componentOffsets, pcsByComponent);
+  }
+
+  /**
+   * Get the number of components.
+   *
+   * @return the number of components
+   */
+  int count() {
+    return componentOffsets.length - 1;
+  }
+
+  /**
+   * Get the component of a PCS.
+   *
+   * @param pcsIndex the index of the PCS in the list the components were found from
+   * @return the component of the PCS
+   */
+  int componentOf(int pcsIndex) {
+    return pcsComponents[pcsIndex];
+  }
+
+  /**
+   * Get the PCSs of a component.
+   *
+   * @param component the component
+   * @return the packed PCSs of the component, in their original order
+   */
+  long[] pcsOf(int component) {
+    return Arrays.copyOfRange(
+        pcsByComponent, componentOffsets[component], componentOffsets[component + 1]);
+  }
+
+  /**
+   * Find the root of a node in a union-find forest (with path halving).
+   *
+   * @param nodeParents the union-find parent of each node
+   * @param node the node to find the root of
+   * @return the root of the node
+   */
+  private static int find(int[] nodeParents, int node) {
+    while (nodeParents[node] != node) {
+      nodeParents[node] = nodeParents[nodeParents[node]];
+      node = nodeParents[node];
+    }
+    return node;
+  }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import com.github.gumtreediff.tree.Tree;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An insertion-ordered set of PCS triples indexed by node.
+ *
+ * <p>PCSs are stored as packed {@code long} triples of node IDs (see {@link PackedPcs}) in a
+ * primitive open-addressing hash set, and every PCS is indexed by its parent, child, and successor
+ * so that PCSs sharing a node can be found without scanning the whole set. Hard inconsistencies are
+ * kept in a side array rather than in the triples themselves, next to a mask of the {@link
+ * Revision}s each PCS came from.
+ *
+ * <p>Sets expected to hold at least {@link Columns#OFF_HEAP_THRESHOLD} PCSs keep all of these
+ * arrays in native memory (see {@link OffHeapColumns}) so that huge merges do not fill the heap.
+ *
+ * <p>The merge engine works on the packed form directly. The {@link java.util.Set} view of {@link
+ * Pcs} records is materialized on demand and treats two PCSs with the same triple as equal.
+ *
+ * @see org.kjy5.spork.Pcs
+ * @author Kenneth Yang
+ */
+public class PcsSet extends AbstractSet<Pcs> {
+  // region Constants.
+  /** Value used where there is no PCS. */
+  public static final long NO_PCS = PackedPcs.NO_PCS;
+
+  // endregion
+
+  // region Fields.
+  private final NodeIds nodeIds;
+  private final PackedPcs packing;
+  private final LongOrderedHashSet pcsTable;
+
+  /** The PCS each entry is hard inconsistent with ({@link #NO_PCS} if none). */
+  private Columns.LongColumn hardInconsistencies;
+
+  /** The revisions each entry came from. */
+  private Columns.ByteColumn revisionMasks;
+
+  private final NodeIndex parentIndex;
+  private final NodeIndex childIndex;
+  private final NodeIndex successorIndex;
+
+  // endregion
+
+  // region Constructors.
+
+  /**
+   * Create an empty PCS set.
+   *
+   * @param nodeIds the node numbering shared by all PCS sets of a merge
+   */
+  public PcsSet(NodeIds nodeIds) {
+    this(nodeIds, 16);
+  }
+
+  /**
+   * Create an empty PCS set.
+   *
+   * @param nodeIds the node numbering shared by all PCS sets of a merge
+   * @param expectedSize the number of PCSs expected to be added
+   */
+  public PcsSet(NodeIds nodeIds, int expectedSize) {
+    this(nodeIds, expectedSize, false);
+  }
+
+  /**
+   * Create an empty PCS set.
+   *
+   * @param nodeIds the node numbering shared by all PCS sets of a merge
+   * @param expectedSize the number of PCSs expected to be added
+   * @param sparse whether the set only refers to a few of the numbered nodes
+   */
+  PcsSet(NodeIds nodeIds, int expectedSize, boolean sparse) {
+    this.nodeIds = nodeIds;
+    packing = nodeIds.packedPcs();
+
+    // Huge sets are kept off the heap.
+    final var columns = Columns.forSize(expectedSize);
+    pcsTable = new LongOrderedHashSet(expectedSize, columns);
+    hardInconsistencies = columns.newLongColumn(Math.max(expectedSize, 16));
+    revisionMasks = columns.newByteColumn(hardInconsistencies.length());
+    parentIndex = new NodeIndex(expectedSize, sparse, columns);
+    childIndex = new NodeIndex(expectedSize, sparse, columns);
+    successorIndex = new NodeIndex(expectedSize, sparse, columns);
+  }
+
+  // endregion
+
+  // region Set methods.
+
+  @Override
+  public Iterator<Pcs> iterator() {
+    return new Iterator<>() {
+      private int nextEntry = skipRemoved(0);
+      private long current = NO_PCS;
+
+      @Override
+      public boolean hasNext() {
+        return nextEntry < pcsTable.entryCount();
+      }
+
+      @Override
+      public Pcs next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        current = pcsTable.entry(nextEntry);
+        nextEntry = skipRemoved(nextEntry + 1);
+        return toPcs(current);
+      }
+
+      @Override
+      public void remove() {
+        if (current == NO_PCS) throw new IllegalStateException();
+
+        PcsSet.this.remove(current);
+        current = NO_PCS;
+      }
+
+      private int skipRemoved(int entry) {
+        while (entry < pcsTable.entryCount() && !pcsTable.isLive(entry)) entry++;
+        return entry;
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return pcsTable.size();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof Pcs pcs)) return false;
+
+    final var packedPcs = find(pcs);
+    return packedPcs != NO_PCS && contains(packedPcs);
+  }
+
+  @Override
+  public boolean add(Pcs pcs) {
+    return add(pcs.parent(), pcs.child(), pcs.successor());
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Pcs> c) {
+    // Copy packed PCSs directly from other PCS sets.
+    if (c instanceof PcsSet other && other.nodeIds == nodeIds) {
+      var changed = false;
+      for (var entry = 0; entry < other.pcsTable.entryCount(); entry++) {
+        if (other.pcsTable.isLive(entry)) changed |= add(other.pcsTable.entry(entry));
+      }
+      return changed;
+    }
+
+    return super.addAll(c);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof Pcs pcs)) return false;
+
+    final var packedPcs = find(pcs);
+    return packedPcs != NO_PCS && remove(packedPcs);
+  }
+
+  // endregion
+
+  // region Packed methods.
+
+  /**
+   * Add a PCS triple, numbering its nodes if necessary.
+   *
+   * @param parent the parent node
+   * @param child the child node
+   * @param successor the successor node
+   * @return true if the PCS was added, false if it was already in the set
+   */
+  public boolean add(Tree parent, Tree child, Tree successor) {
+    return add(pack(parent, child, successor));
+  }
+
+  /**
+   * Add a packed PCS.
+   *
+   * @param pcs the packed PCS to add
+   * @return true if the PCS was added, false if it was already in the set
+   */
+  public boolean add(long pcs) {
+    return add(pcs, 0);
+  }
+
+  /**
+   * Add a packed PCS and tag it with the revisions it came from.
+   *
+   * <p>If the PCS is already in the set, the revisions are added to its existing tags.
+   *
+   * @param pcs the packed PCS to add
+   * @param revisionMask the mask of revisions the PCS came from
+   * @return true if the PCS was added, false if it was already in the set
+   */
+  public boolean add(long pcs, int revisionMask) {
+    final var entry = pcsTable.add(pcs);
+    if (entry < 0) {
+      final var existingEntry = pcsTable.indexOf(pcs);
+      revisionMasks.set(existingEntry, (byte) (revisionMasks.get(existingEntry) | revisionMask));
+      return false;
+    }
+
+    // Clear hard inconsistency and tag revisions.
+    if (entry == hardInconsistencies.length()) {
+      hardInconsistencies = hardInconsistencies.resize(entry * 2);
+      revisionMasks = revisionMasks.resize(entry * 2);
+    }
+    hardInconsistencies.set(entry, NO_PCS);
+    revisionMasks.set(entry, (byte) revisionMask);
+
+    // Index nodes.
+    parentIndex.add(packing.parent(pcs), entry);
+    childIndex.add(packing.child(pcs), entry);
+    successorIndex.add(packing.successor(pcs), entry);
+    return true;
+  }
+
+  /**
+   * Add all PCSs of another PCS set and tag them with a revision.
+   *
+   * @param pcsSet the PCS set to add (numbered by the same node numbering)
+   * @param revision the revision the PCSs came from
+   */
+  public void addAll(PcsSet pcsSet, Revision revision) {
+    for (var entry = 0; entry < pcsSet.pcsTable.entryCount(); entry++) {
+      if (pcsSet.pcsTable.isLive(entry)) add(pcsSet.pcsTable.entry(entry), revision.mask());
+    }
+  }
+
+  /**
+   * Check if a packed PCS is in the set.
+   *
+   * @param pcs the packed PCS to check
+   * @return true if the PCS is in the set, false otherwise
+   */
+  public boolean contains(long pcs) {
+    return pcsTable.contains(pcs);
+  }
+
+  /**
+   * Remove a packed PCS.
+   *
+   * @param pcs the packed PCS to remove
+   * @return true if the PCS was removed, false if it was not in the set
+   */
+  public boolean remove(long pcs) {
+    // Index entries of removed PCSs are skipped when read.
+    return pcsTable.remove(pcs) >= 0;
+  }
+
+  /**
+   * Get all PCSs in insertion order.
+   *
+   * @return a new array of the packed PCSs
+   */
+  public long[] toPackedArray() {
+    return pcsTable.toArray();
+  }
+
+  /**
+   * Get all PCSs with the given parent.
+   *
+   * @param parent the parent node ID
+   * @return the packed PCSs with the given parent, in insertion order
+   */
+  public long[] withParent(int parent) {
+    return lookup(NO_PCS, new NodeIndex[] {parentIndex}, new int[] {parent});
+  }
+
+  /**
+   * Get all PCSs that share a child or successor node with the given PCS.
+   *
+   * <p>Only these PCSs can be inconsistent with the given PCS. The given PCS itself is excluded.
+   *
+   * @param pcs the packed PCS to find neighbours of
+   * @return the packed PCSs sharing a child or successor node with the given PCS, in insertion order
+   */
+  public long[] sharingNodeWith(long pcs) {
+    final var child = packing.child(pcs);
+    final var successor = packing.successor(pcs);
+    return lookup(
+        pcs,
+        new NodeIndex[] {childIndex, successorIndex, childIndex, successorIndex},
+        new int[] {child, child, successor, successor});
+  }
+
+  /**
+   * Get the revisions a PCS came from.
+   *
+   * @param pcs the packed PCS
+   * @return the mask of revisions the PCS came from (0 if the PCS is not in the set)
+   */
+  public int revisionsOf(long pcs) {
+    final var entry = pcsTable.indexOf(pcs);
+    return entry < 0 ? 0 : revisionMasks.get(entry);
+  }
+
+  /**
+   * Get the PCS a PCS is hard inconsistent with.
+   *
+   * @param pcs the packed PCS
+   * @return the packed PCS it is hard inconsistent with, or {@link #NO_PCS} if none (or if the PCS
+   *     is not in the set)
+   */
+  public long hardInconsistencyOf(long pcs) {
+    final var entry = pcsTable.indexOf(pcs);
+    return entry < 0 ? NO_PCS : hardInconsistencies.get(entry);
+  }
+
+  /**
+   * Check if any PCS in the set is hard inconsistent with another PCS.
+   *
+   * @return true if the set has a hard inconsistency, false otherwise
+   */
+  public boolean hasHardInconsistencies() {
+    for (var entry = 0; entry < pcsTable.entryCount(); entry++) {
+      if (pcsTable.isLive(entry) && hardInconsistencies.get(entry) != NO_PCS) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Mark a PCS as hard inconsistent with another PCS.
+   *
+   * @param pcs the packed PCS to mark (must be in the set)
+   * @param otherPcs the packed PCS it is hard inconsistent with
+   */
+  public void setHardInconsistency(long pcs, long otherPcs) {
+    hardInconsistencies.set(pcsTable.indexOf(pcs), otherPcs);
+  }
+
+  // endregion
+
+  // region Conversion methods.
+
+  /**
+   * Get the node numbering this set's PCSs refer to.
+   *
+   * @return the node numbering
+   */
+  public NodeIds nodeIds() {
+    return nodeIds;
+  }
+
+  /**
+   * Convert a packed PCS back to a PCS record.
+   *
+   * @param pcs the packed PCS
+   * @return the corresponding PCS record
+   */
+  public Pcs toPcs(long pcs) {
+    return new Pcs(
+        nodeIds.nodeOf(packing.parent(pcs)),
+        nodeIds.nodeOf(packing.child(pcs)),
+        nodeIds.nodeOf(packing.successor(pcs)));
+  }
+
+  /**
+   * Get the PCS a PCS is hard inconsistent with.
+   *
+   * @param pcs the PCS record
+   * @return the PCS record it is hard inconsistent with, or null if none
+   */
+  public Pcs hardInconsistencyOf(Pcs pcs) {
+    final var packedPcs = find(pcs);
+    if (packedPcs == NO_PCS) return null;
+
+    final var hardInconsistency = hardInconsistencyOf(packedPcs);
+    return hardInconsistency == NO_PCS ? null : toPcs(hardInconsistency);
+  }
+
+  /**
+   * Pack a PCS triple, numbering its nodes if necessary.
+   *
+   * @param parent the parent node
+   * @param child the child node
+   * @param successor the successor node
+   * @return the packed PCS
+   */
+  private long pack(Tree parent, Tree child, Tree successor) {
+    return packing.pack(nodeIds.idOf(parent), nodeIds.idOf(child), nodeIds.idOf(successor));
+  }
+
+  /**
+   * Pack a PCS record without numbering its nodes.
+   *
+   * @param pcs the PCS record
+   * @return the packed PCS, or {@link #NO_PCS} if any of its nodes are not numbered (or it was
+   *     never packed)
+   */
+  private long find(Pcs pcs) {
+    final var parent = nodeIds.find(pcs.parent());
+    final var child = nodeIds.find(pcs.child());
+    final var successor = nodeIds.find(pcs.successor());
+    if (parent == NodeIds.NO_ID || child == NodeIds.NO_ID || successor == NodeIds.NO_ID) {
+      return NO_PCS;
+    }
+    return packing.find(parent, child, successor);
+  }
+
+  // endregion
+
+  // region Index helpers.
+
+  /**
+   * Look up the live PCSs indexed by one or more (index, node) pairs.
+   *
+   * @param excludedPcs a packed PCS to leave out of the result
+   * @param indexes the indexes to look in
+   * @param nodes the node ID to look up in each index
+   * @return the matching packed PCSs without duplicates, in insertion order
+   */
+  private long[] lookup(long excludedPcs, NodeIndex[] indexes, int[] nodes) {
+    var entries = new int[8];
+    var count = 0;
+
+    // Collect live entries.
+    for (var i = 0; i < indexes.length; i++) {
+      final var index = indexes[i];
+      for (var link = index.head(nodes[i]); link != NodeIndex.END; link = index.next(link)) {
+        final var entry = index.value(link);
+        if (!pcsTable.isLive(entry) || pcsTable.entry(entry) == excludedPcs) continue;
+
+        if (count == entries.length) entries = Arrays.copyOf(entries, count * 2);
+        entries[count++] = entry;
+      }
+    }
+
+    // Sort into insertion order and drop duplicates.
+    Arrays.sort(entries, 0, count);
+    final var result = new long[count];
+    var resultCount = 0;
+    for (var i = 0; i < count; i++) {
+      if (i > 0 && entries[i] == entries[i - 1]) continue;
+      result[resultCount++] = pcsTable.entry(entries[i]);
+    }
+    return Arrays.copyOf(result, resultCount);
+  }
+  // endregion
+}
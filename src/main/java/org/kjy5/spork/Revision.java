@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+/**
+ * A revision of a three-way merge.
+ *
+ * <p>Sets of revisions are stored as bitmasks of {@link #mask()} values.
+ *
+ * @author Kenneth Yang
+ */
+public enum Revision {
+  BASE,
+  LEFT,
+  RIGHT;
+
+  /**
+   * Get the bitmask of this revision.
+   *
+   * @return the bit representing this revision in a revision mask
+   */
+  public int mask() {
+    return 1 << ordinal();
+  }
+
+  /**
+   * Check if this revision is in a revision mask.
+   *
+   * @param revisionMask the revision mask to check
+   * @return true if this revision's bit is set, false otherwise
+   */
+  public boolean isIn(int revisionMask) {
+    return (revisionMask & mask()) != 0;
+  }
+
+  /**
+   * Get the last revision in a revision mask (in base, left, right order).
+   *
+   * @param revisionMask the revision mask
+   * @return the revision with the highest set bit, or null if the mask is empty
+   */
+  public static Revision lastIn(int revisionMask) {
+    return revisionMask == 0 ? null : values()[31 - Integer.numberOfLeadingZeros(revisionMask)];
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.tree.Tree;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Subtrees that are unchanged in all three branches of a merge.
+ *
+ * <p>A base subtree is unchanged if it is matched to a left and a right subtree with the same
+ * structural (Merkle) hash, and every node in it is matched to the corresponding node in both
+ * branches. Unchanged subtrees are collapsed into a single opaque node: their descendants produce no
+ * PCSs or content tuples, they keep their children when the merged tree is rebuilt, and they are
+ * printed verbatim.
+ *
+ * @author Kenneth Yang
+ */
+public class UnchangedSubtrees {
+  // region Constants.
+  /** Metadata key set on the roots of unchanged subtrees in all three branches. */
+  public static final String METADATA_KEY = "unchanged";
+
+  // endregion
+
+  /**
+   * Find and mark the maximal unchanged subtrees of a merge.
+   *
+   * @param baseTree the base tree
+   * @param leftTree the left tree
+   * @param rightTree the right tree
+   * @param baseToLeft the match mapping from base to left
+   * @param baseToRight the match mapping from base to right
+   * @return the number of nodes (per branch) inside unchanged subtrees, excluding their roots
+   */
+  public static int mark(
+      Tree baseTree,
+      Tree leftTree,
+      Tree rightTree,
+      MappingStore baseToLeft,
+      MappingStore baseToRight) {
+    var prunedNodeCount = 0;
+
+    // Look top-down so only maximal subtrees are marked.
+    var pending = new ArrayDeque<Tree>();
+    pending.push(baseTree);
+    while (!pending.isEmpty()) {
+      final var baseNode = pending.pop();
+
+      // Leaves have nothing to prune.
+      if (baseNode.isLeaf()) continue;
+
+      final var leftNode = baseToLeft.getDstForSrc(baseNode);
+      final var rightNode = baseToRight.getDstForSrc(baseNode);
+      if (leftNode != null
+          && rightNode != null
+          && isUnchanged(baseNode, leftNode, rightNode, baseToLeft, baseToRight)) {
+        baseNode.setMetadata(METADATA_KEY, true);
+        leftNode.setMetadata(METADATA_KEY, true);
+        rightNode.setMetadata(METADATA_KEY, true);
+        prunedNodeCount += baseNode.getMetrics().size - 1;
+        continue;
+      }
+
+      // Otherwise, look for unchanged subtrees further down.
+      for (var child : baseNode.getChildren()) pending.push(child);
+    }
+
+    return prunedNodeCount;
+  }
+
+  /**
+   * Check if a node is the root of an unchanged subtree.
+   *
+   * @param node the node to check
+   * @return true if the node's subtree is unchanged in all three branches, false otherwise
+   */
+  public static boolean isUnchanged(Tree node) {
+    return node.getMetadata(METADATA_KEY) != null;
+  }
+
+  /**
+   * Check if matched base, left, and right subtrees are identical and fully matched.
+   *
+   * @param baseNode the root of the base subtree
+   * @param leftNode the root of the matched left subtree
+   * @param rightNode the root of the matched right subtree
+   * @param baseToLeft the match mapping from base to left
+   * @param baseToRight the match mapping from base to right
+   * @return true if the subtrees are unchanged, false otherwise
+   */
+  private static boolean isUnchanged(
+      Tree baseNode,
+      Tree leftNode,
+      Tree rightNode,
+      MappingStore baseToLeft,
+      MappingStore baseToRight) {
+    // Short-circuit on the structural hashes.
+    final var baseMetrics = baseNode.getMetrics();
+    if (baseMetrics.hash != leftNode.getMetrics().hash
+        || baseMetrics.hash != rightNode.getMetrics().hash
+        || baseMetrics.size != leftNode.getMetrics().size
+        || baseMetrics.size != rightNode.getMetrics().size) {
+      return false;
+    }
+
+    // Walk the subtrees in lockstep, checking every node is matched to its counterpart.
+    Iterator<Tree> leftNodes = leftNode.preOrder().iterator();
+    Iterator<Tree> rightNodes = rightNode.preOrder().iterator();
+    for (var baseDescendant : baseNode.preOrder()) {
+      final var leftDescendant = leftNodes.next();
+      final var rightDescendant = rightNodes.next();
+      if (baseToLeft.getDstForSrc(baseDescendant) != leftDescendant
+          || baseToRight.getDstForSrc(baseDescendant) != rightDescendant
+          || baseDescendant.getType() != leftDescendant.getType()
+          || baseDescendant.getType() != rightDescendant.getType()
+          || !baseDescendant.getLabel().equals(leftDescendant.getLabel())
+          || !baseDescendant.getLabel().equals(rightDescendant.getLabel())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link PieceTable}, checked against a plain list of bytes.
+ *
+ * @author Kenneth Yang
+ */
+class PieceTableTest {
+  // region Targeted tests.
+
+  @Test
+  void insertInsidePieceSplitsIt() {
+    final var table = new PieceTable(1);
+    final var text = table.addSource(bufferOf("abcdef"));
+    final var insert = table.addSource(bufferOf("XY"));
+    table.insert(0, text, 0, 6);
+
+    table.insert(2, insert, 0, 2);
+    table.insert(5, insert, 1, 1);
+
+    assertEquals(9, table.size());
+    assertEquals("abXYcYdef", contentOf(table));
+  }
+
+  @Test
+  void deleteAtPieceEdges() {
+    final var table = new PieceTable(4);
+    final var text = table.addSource(bufferOf("abcdefghi"));
+    table.insert(0, text, 0, 3);
+    table.insert(3, text, 3, 3);
+    table.insert(6, text, 6, 3);
+
+    // Exactly the middle piece.
+    table.delete(3, 6);
+    assertEquals("abcghi", contentOf(table));
+
+    // From the start of the content to the end of the first piece.
+    table.delete(0, 3);
+    assertEquals("ghi", contentOf(table));
+
+    // Empty ranges at both ends.
+    table.delete(0, 0);
+    table.delete(3, 3);
+    assertEquals("ghi", contentOf(table));
+
+    // The rest of the content.
+    table.delete(0, 3);
+    assertEquals(0, table.size());
+    assertTrue(table.toSpansWithoutNullBytes().isEmpty());
+  }
+
+  @Test
+  void readsPastEndOfSourceAreNullBytes() {
+    final var table = new PieceTable(1);
+    final var text = table.addSource(bufferOf("abc"));
+    table.insert(0, text, 1, 5);
+    table.insert(0, text, 0, 1);
+
+    // The bytes past the end of the source count towards the size but are dropped when read.
+    assertEquals(6, table.size());
+    assertEquals("abc", contentOf(table));
+  }
+
+  @Test
+  void contiguousPiecesAreCoalesced() {
+    final var table = new PieceTable(1);
+    final var text = table.addSource(bufferOf("abcdef"));
+    final var nulls = table.addSource(ByteBuffer.allocate(4));
+    final var other = table.addSource(bufferOf("XY"));
+    table.insert(0, text, 0, 6);
+
+    // A piece split by an insertion that is later deleted again is still one span.
+    table.insert(3, other, 0, 2);
+    table.delete(3, 5);
+    assertEquals(List.of(bufferOf("abcdef")), table.toSpansWithoutNullBytes());
+
+    // Null bytes between the two halves are dropped without breaking the span.
+    table.insert(3, nulls, 0, 4);
+    assertEquals(List.of(bufferOf("abcdef")), table.toSpansWithoutNullBytes());
+
+    // Pieces of the same source that are not contiguous in it are separate spans.
+    table.insert(10, text, 0, 2);
+    assertEquals(List.of(bufferOf("abcdef"), bufferOf("ab")), table.toSpansWithoutNullBytes());
+
+    // So are runs of a source separated by null bytes within it.
+    final var gapTable = new PieceTable(1);
+    gapTable.insert(0, gapTable.addSource(bufferOf("a\0b")), 0, 3);
+    assertEquals(List.of(bufferOf("a"), bufferOf("b")), gapTable.toSpansWithoutNullBytes());
+  }
+
+  @Test
+  void spansAreReadOnly() {
+    final var table = new PieceTable(1);
+    table.insert(0, table.addSource(bufferOf("abc")), 0, 3);
+
+    for (final var span : table.toSpansWithoutNullBytes()) assertTrue(span.isReadOnly());
+  }
+
+  @Test
+  void outOfBoundsSplicesThrow() {
+    final var table = new PieceTable(1);
+    final var text = table.addSource(bufferOf("abc"));
+    table.insert(0, text, 0, 3);
+
+    assertThrows(IndexOutOfBoundsException.class, () -> table.insert(4, text, 0, 1));
+    assertThrows(IndexOutOfBoundsException.class, () -> table.insert(-1, text, 0, 1));
+    assertThrows(IndexOutOfBoundsException.class, () -> table.delete(2, 4));
+    assertThrows(IndexOutOfBoundsException.class, () -> table.delete(2, 1));
+  }
+
+  // endregion
+
+  // region Randomized model test.
+
+  @Test
+  void randomSplicesMatchModel() {
+    final var random = new Random(0x5eed);
+
+    for (var round = 0; round < 50; round++) {
+      // Sources with some null bytes, read past their end by some pieces.
+      final var sources = new ArrayList<byte[]>();
+      final var table = new PieceTable(1 + random.nextInt(8));
+      for (var i = 0; i < 4; i++) {
+        final var source = new byte[random.nextInt(64)];
+        for (var j = 0; j < source.length; j++) {
+          source[j] = random.nextInt(8) == 0 ? 0 : (byte) ('a' + random.nextInt(26));
+        }
+        sources.add(source);
+        assertEquals(i, table.addSource(ByteBuffer.wrap(source)));
+      }
+
+      // Each byte of the model is its source ID, offset in the source, and value.
+      final var model = new ArrayList<int[]>();
+      for (var step = 0; step < 200; step++) {
+        if (model.isEmpty() || random.nextInt(3) != 0) {
+          final var index = random.nextInt(model.size() + 1);
+          final var sourceId = random.nextInt(sources.size());
+          final var source = sources.get(sourceId);
+          final var start = random.nextInt(source.length + 4);
+          final var length = random.nextInt(16);
+          table.insert(index, sourceId, start, length);
+          final var piece = new ArrayList<int[]>();
+          for (var i = start; i < start + length; i++) {
+            piece.add(new int[] {sourceId, i, i < source.length ? source[i] : 0});
+          }
+          model.addAll(index, piece);
+        } else {
+          final var from = random.nextInt(model.size() + 1);
+          final var to = from + random.nextInt(model.size() - from + 1);
+          table.delete(from, to);
+          model.subList(from, to).clear();
+        }
+
+        assertEquals(model.size(), table.size(), "size after step " + step);
+      }
+
+      // Expect one span per run of non-null bytes that are contiguous in the same source.
+      final var expected = new ByteArrayOutputStream();
+      final var expectedSpanLengths = new ArrayList<Integer>();
+      int[] last = null;
+      for (final var b : model) {
+        if (b[2] == 0) continue;
+        if (last != null && last[0] == b[0] && last[1] + 1 == b[1]) {
+          final var lastSpan = expectedSpanLengths.size() - 1;
+          expectedSpanLengths.set(lastSpan, expectedSpanLengths.get(lastSpan) + 1);
+        } else {
+          expectedSpanLengths.add(1);
+        }
+        expected.write(b[2]);
+        last = b;
+      }
+
+      final var spans = table.toSpansWithoutNullBytes();
+      assertArrayEquals(expected.toByteArray(), bytesOf(spans), "content in round " + round);
+      assertEquals(
+          expectedSpanLengths,
+          spans.stream().map(ByteBuffer::remaining).toList(),
+          "span lengths in round " + round);
+    }
+  }
+
+  // endregion
+
+  // region Helpers.
+
+  /**
+   * Wrap a string in a buffer.
+   *
+   * @param text the string
+   * @return a buffer of its UTF-8 bytes
+   */
+  private static ByteBuffer bufferOf(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Concatenate spans.
+   *
+   * @param spans the spans
+   * @return the bytes of the spans, in order
+   */
+  private static byte[] bytesOf(List<ByteBuffer> spans) {
+    final var bytes = new ByteArrayOutputStream();
+    for (final var span : spans) {
+      final var copy = new byte[span.remaining()];
+      span.duplicate().get(copy);
+      bytes.writeBytes(copy);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Read the content of a table.
+   *
+   * @param table the table
+   * @return the content without null bytes, as a string
+   */
+  private static String contentOf(PieceTable table) {
+    return new String(bytesOf(table.toSpansWithoutNullBytes()), StandardCharsets.UTF_8);
+  }
+  // endregion
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.kjy5.cache.TreeCodecTest.EXAMPLES;
+
+import com.github.gumtreediff.matchers.MappingStore;
+import com.github.gumtreediff.matchers.Matchers;
+import com.github.gumtreediff.tree.Tree;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link MatchCache}.
+ *
+ * @author Kenneth Yang
+ */
+class MatchCacheTest {
+  // region Fields.
+  @TempDir Path cacheDirectory;
+
+  // endregion
+
+  @Test
+  void cachedMatchingsMatchFreshMatchings() throws IOException {
+    final var cache = new MatchCache(new BlobCache(cacheDirectory, Long.MAX_VALUE));
+    final var base = EXAMPLES.resolve("0").resolve("file_base.java");
+    final var left = EXAMPLES.resolve("0").resolve("file_left.java");
+    final var key = MatchCache.keyOf("test", Files.readAllBytes(base), Files.readAllBytes(left));
+
+    // Cache the matching of one pair of trees.
+    final var matchings = new AtomicInteger();
+    final var cachedSrc = parse(base);
+    final var cachedDst = parse(left);
+    cache.match(key, cachedSrc, cachedDst, () -> match(cachedSrc, cachedDst, matchings));
+    assertEquals(1, matchings.get());
+
+    // Load it onto a second pair, and compare it to matching a third pair from scratch.
+    final var src = parse(base);
+    final var dst = parse(left);
+    final var loaded = cache.match(key, src, dst, () -> match(src, dst, matchings));
+    assertEquals(1, matchings.get(), "matchings computed");
+
+    final var freshSrc = parse(base);
+    final var freshDst = parse(left);
+    final var fresh = Matchers.getInstance().getMatcher().match(freshSrc, freshDst);
+    assertTrue(fresh.size() > 0, "no mappings between " + base + " and " + left);
+    assertEquals(
+        indexPairsOf(fresh, freshSrc, freshDst), indexPairsOf(loaded, src, dst), "mappings");
+  }
+
+  @Test
+  void truncatedBlobsAreInvalidated() throws IOException {
+    final var cache = new MatchCache(new BlobCache(cacheDirectory, Long.MAX_VALUE));
+    final var base = EXAMPLES.resolve("0").resolve("file_base.java");
+    final var right = EXAMPLES.resolve("0").resolve("file_right.java");
+    final var key = MatchCache.keyOf("test", Files.readAllBytes(base), Files.readAllBytes(right));
+    final var matchings = new AtomicInteger();
+    final var src = parse(base);
+    final var dst = parse(right);
+    final var matched = cache.match(key, src, dst, () -> match(src, dst, matchings));
+
+    // Truncate the blob.
+    final var blobFile = cacheDirectory.resolve(key);
+    final var blob = Files.readAllBytes(blobFile);
+    Files.write(blobFile, Arrays.copyOf(blob, blob.length / 2));
+
+    // The trees are matched again and the blob rewritten.
+    final var rematched = cache.match(key, src, dst, () -> match(src, dst, matchings));
+    assertEquals(2, matchings.get(), "matchings computed");
+    assertEquals(indexPairsOf(matched, src, dst), indexPairsOf(rematched, src, dst), "mappings");
+    assertEquals(blob.length, Files.size(blobFile), "rewritten blob size");
+  }
+
+  // region Helpers.
+
+  /**
+   * Parse a Java source file the way the merge pipeline does.
+   *
+   * @param file the file
+   * @return the root of its tree
+   * @throws IOException if the file could not be read
+   */
+  private static Tree parse(Path file) throws IOException {
+    final var tree = TreeCodecTest.parse(file);
+    tree.getMetrics();
+    return tree;
+  }
+
+  /**
+   * Match two trees with the default matcher, counting the matchings computed.
+   *
+   * @param src the source tree
+   * @param dst the destination tree
+   * @param matchings the number of matchings computed so far
+   * @return the matching
+   */
+  private static MappingStore match(Tree src, Tree dst, AtomicInteger matchings) {
+    matchings.incrementAndGet();
+    return Matchers.getInstance().getMatcher().match(src, dst);
+  }
+
+  /**
+   * Convert a matching to preorder index pairs, comparable across trees of the same source.
+   *
+   * @param mappings the matching
+   * @param src the source tree
+   * @param dst the destination tree
+   * @return the (source, destination) preorder index pairs
+   */
+  private static Set<List<Integer>> indexPairsOf(MappingStore mappings, Tree src, Tree dst) {
+    final var srcIndexes = preorderIndexes(src);
+    final var dstIndexes = preorderIndexes(dst);
+    final var pairs = new HashSet<List<Integer>>();
+    for (final var mapping : mappings) {
+      pairs.add(List.of(srcIndexes.get(mapping.first), dstIndexes.get(mapping.second)));
+    }
+    return pairs;
+  }
+
+  /**
+   * Number the nodes of a tree in preorder.
+   *
+   * @param root the root of the tree
+   * @return the preorder index of every node
+   */
+  private static IdentityHashMap<Tree, Integer> preorderIndexes(Tree root) {
+    final var indexes = new IdentityHashMap<Tree, Integer>();
+    for (final var node : root.preOrder()) indexes.put(node, indexes.size());
+    return indexes;
+  }
+  // endregion
+}
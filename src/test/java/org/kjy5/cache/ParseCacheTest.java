@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.kjy5.cache.TreeCodecTest.EXAMPLES;
+import static org.kjy5.cache.TreeCodecTest.assertSameNodes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ParseCache}.
+ *
+ * @author Kenneth Yang
+ */
+class ParseCacheTest {
+  // region Fields.
+  @TempDir Path cacheDirectory;
+
+  // endregion
+
+  @Test
+  void cachedTreesMatchParsedTrees() throws IOException {
+    final var file = EXAMPLES.resolve("0").resolve("file_base.java");
+    final var source = Files.readAllBytes(file);
+    final var cache = new ParseCache(new BlobCache(cacheDirectory, Long.MAX_VALUE));
+
+    final var parsed = cache.parse(source);
+    final var loaded = cache.parse(source);
+    assertNotSame(parsed, loaded);
+    assertSameNodes(TreeCodecTest.parse(file), parsed, "parsed " + file);
+    assertSameNodes(parsed, loaded, "cached " + file);
+  }
+
+  @Test
+  void truncatedBlobsAreInvalidated() throws IOException {
+    final var file = EXAMPLES.resolve("0").resolve("file_base.java");
+    final var source = Files.readAllBytes(file);
+    final var cache = new ParseCache(new BlobCache(cacheDirectory, Long.MAX_VALUE));
+    final var parsed = cache.parse(source);
+
+    // Truncate the only blob.
+    final var blobFile = onlyFile(cacheDirectory);
+    final var blob = Files.readAllBytes(blobFile);
+    Files.write(blobFile, Arrays.copyOf(blob, blob.length / 2));
+
+    // The source is parsed again and the blob rewritten.
+    assertSameNodes(parsed, cache.parse(source), "reparsed " + file);
+    assertEquals(blobFile, onlyFile(cacheDirectory));
+    assertArrayEquals(blob, Files.readAllBytes(blobFile), "rewritten blob");
+  }
+
+  // region Helpers.
+
+  /**
+   * Get the only file in a directory.
+   *
+   * @param directory the directory
+   * @return the file
+   * @throws IOException if the directory could not be listed
+   */
+  private static Path onlyFile(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      final var fileList = files.toList();
+      assertEquals(1, fileList.size(), "files in " + directory);
+      return fileList.get(0);
+    }
+  }
+  // endregion
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.gumtreediff.gen.javaparser.JavaParserGenerator;
+import com.github.gumtreediff.tree.Tree;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link TreeCodec}.
+ *
+ * @author Kenneth Yang
+ */
+class TreeCodecTest {
+  // region Constants.
+  /** Directory of the example merges (one subdirectory of base, left, and right files each). */
+  static final Path EXAMPLES = Path.of("resources");
+
+  // endregion
+
+  @Test
+  void decodedTreesMatchParsedTrees() throws IOException {
+    final var files = exampleFiles();
+    assertFalse(files.isEmpty(), "no examples in " + EXAMPLES.toAbsolutePath());
+
+    for (final var file : files) {
+      final var tree = parse(file);
+      assertSameNodes(tree, TreeCodec.decode(ByteBuffer.wrap(TreeCodec.encode(tree))), file);
+    }
+  }
+
+  @Test
+  void truncatedEncodingsAreRejected() throws IOException {
+    final var encoded = TreeCodec.encode(parse(EXAMPLES.resolve("0").resolve("file_base.java")));
+
+    for (var length = 0; length < encoded.length; length++) {
+      final var truncated = ByteBuffer.wrap(encoded, 0, length);
+      assertThrows(IllegalArgumentException.class, () -> TreeCodec.decode(truncated));
+    }
+  }
+
+  // region Helpers.
+
+  /**
+   * List the source files of all example merges.
+   *
+   * @return the base, left, and right files of every example
+   * @throws IOException if the examples could not be listed
+   */
+  private static List<Path> exampleFiles() throws IOException {
+    final var files = new ArrayList<Path>();
+    try (var directories = Files.list(EXAMPLES)) {
+      for (final var example : directories.filter(Files::isDirectory).sorted().toList()) {
+        for (final var version : new String[] {"base", "left", "right"}) {
+          files.add(example.resolve("file_" + version + ".java"));
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Parse a Java source file.
+   *
+   * @param file the file
+   * @return the root of its tree
+   * @throws IOException if the file could not be read
+   */
+  static Tree parse(Path file) throws IOException {
+    return new JavaParserGenerator().generateFrom().string(Files.readString(file)).getRoot();
+  }
+
+  /**
+   * Check that two trees have the same nodes (type, label, position, length, and shape).
+   *
+   * @param expected the expected tree
+   * @param actual the actual tree
+   * @param source where the trees came from, for failure messages
+   */
+  static void assertSameNodes(Tree expected, Tree actual, Object source) {
+    final var expectedNodes = new ArrayList<Tree>();
+    expected.preOrder().forEach(expectedNodes::add);
+    final var actualNodes = new ArrayList<Tree>();
+    actual.preOrder().forEach(actualNodes::add);
+    assertEquals(expectedNodes.size(), actualNodes.size(), "node count of " + source);
+
+    for (var i = 0; i < expectedNodes.size(); i++) {
+      final var expectedNode = expectedNodes.get(i);
+      final var actualNode = actualNodes.get(i);
+      final var node = "node " + i + " of " + source;
+      assertSame(expectedNode.getType(), actualNode.getType(), "type of " + node);
+      assertEquals(expectedNode.getLabel(), actualNode.getLabel(), "label of " + node);
+      assertEquals(expectedNode.getPos(), actualNode.getPos(), "position of " + node);
+      assertEquals(expectedNode.getLength(), actualNode.getLength(), "length of " + node);
+      assertEquals(
+          expectedNode.getChildren().size(),
+          actualNode.getChildren().size(),
+          "child count of " + node);
+    }
+  }
+  // endregion
+}
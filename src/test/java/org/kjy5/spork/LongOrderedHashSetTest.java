@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link LongOrderedHashSet}, on and off the heap.
+ *
+ * @author Kenneth Yang
+ */
+class LongOrderedHashSetTest {
+  // region Constants.
+  private static final List<Columns> ALL_COLUMNS =
+      List.of(HeapColumns.INSTANCE, OffHeapColumns.INSTANCE);
+
+  // endregion
+
+  @Test
+  void addAssignsEntriesInOrder() {
+    for (final var columns : ALL_COLUMNS) {
+      final var set = new LongOrderedHashSet(4, columns);
+
+      assertEquals(0, set.add(42));
+      assertEquals(1, set.add(0));
+      assertEquals(2, set.add(Long.MAX_VALUE));
+      assertEquals(-1, set.add(42), "duplicate key");
+
+      assertEquals(3, set.size());
+      assertEquals(3, set.entryCount());
+      assertTrue(set.contains(0));
+      assertFalse(set.contains(7));
+      assertEquals(2, set.indexOf(Long.MAX_VALUE));
+      assertEquals(-1, set.indexOf(7));
+      assertEquals(42, set.entry(0));
+    }
+  }
+
+  @Test
+  void removeLeavesTombstone() {
+    for (final var columns : ALL_COLUMNS) {
+      final var set = new LongOrderedHashSet(4, columns);
+      set.add(1);
+      set.add(2);
+      set.add(3);
+
+      assertEquals(1, set.remove(2));
+      assertEquals(-1, set.remove(2), "already removed");
+      assertEquals(-1, set.remove(4), "never added");
+
+      // The entry stays, but no longer holds a key.
+      assertEquals(2, set.size());
+      assertEquals(3, set.entryCount());
+      assertFalse(set.isLive(1));
+      assertTrue(set.isLive(2));
+      assertFalse(set.contains(2));
+      assertTrue(set.contains(3));
+
+      // Adding the key again appends a new entry.
+      assertEquals(3, set.add(2));
+      assertEquals(3, set.indexOf(2));
+      assertArrayEquals(new long[] {1, 3, 2}, set.toArray());
+    }
+  }
+
+  @Test
+  void keysSurviveResize() {
+    for (final var columns : ALL_COLUMNS) {
+      final var set = new LongOrderedHashSet(0, columns);
+      for (var key = 0L; key < 10_000; key++) assertEquals(key, set.add(key * 31));
+
+      assertEquals(10_000, set.size());
+      for (var key = 0L; key < 10_000; key++) {
+        assertEquals(key, set.indexOf(key * 31));
+        assertFalse(set.contains(key * 31 + 1));
+      }
+    }
+  }
+
+  @Test
+  void randomOperationsMatchModel() {
+    final var random = new Random(0x5eed);
+    for (final var columns : ALL_COLUMNS) {
+      final var set = new LongOrderedHashSet(random.nextInt(32), columns);
+      final var model = new LinkedHashSet<Long>();
+      final var entries = new ArrayList<Long>();
+
+      for (var step = 0; step < 20_000; step++) {
+        // Few distinct keys, so removes and re-adds (and their tombstones) are frequent.
+        final var key = (long) random.nextInt(512) << random.nextInt(40);
+        if (random.nextInt(3) == 0) {
+          final var entry = set.remove(key);
+          assertEquals(model.remove(key) ? entries.indexOf(key) : -1, entry, "remove " + key);
+          if (entry >= 0) entries.set(entry, null);
+        } else {
+          final var entry = set.add(key);
+          assertEquals(model.add(key) ? entries.size() : -1, entry, "add " + key);
+          if (entry >= 0) entries.add(key);
+        }
+        assertEquals(model.size(), set.size());
+        assertEquals(entries.size(), set.entryCount());
+      }
+
+      assertArrayEquals(
+          model.stream().mapToLong(Long::longValue).toArray(), set.toArray(), "insertion order");
+      for (var entry = 0; entry < entries.size(); entry++) {
+        assertEquals(entries.get(entry) != null, set.isLive(entry));
+        if (entries.get(entry) != null) assertEquals((long) entries.get(entry), set.entry(entry));
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.github.gumtreediff.gen.javaparser.JavaParserGenerator;
+import com.github.gumtreediff.matchers.Matchers;
+import com.github.gumtreediff.tree.Tree;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link Merger}.
+ *
+ * @author Kenneth Yang
+ */
+class MergerTest {
+  // region Constants.
+  /** Directory of the example merges (one subdirectory of base, left, and right files each). */
+  private static final Path EXAMPLES = Path.of("resources");
+
+  // endregion
+
+  @Test
+  void parallelMergeMatchesSequentialMerge() throws IOException {
+    final List<Path> examples;
+    try (var directories = Files.list(EXAMPLES)) {
+      examples = directories.filter(Files::isDirectory).sorted().toList();
+    }
+    assertFalse(examples.isEmpty(), "no examples in " + EXAMPLES.toAbsolutePath());
+
+    for (final var example : examples) {
+      final var changeSets = changeSetsOf(example);
+      final var sequential = Merger.merge(changeSets[0], changeSets[1], changeSets[2], false);
+      final var parallel = Merger.merge(changeSets[0], changeSets[1], changeSets[2], true);
+
+      // Both merges share the change sets' nodes, so their PCSs and content tuples compare equal.
+      assertEquals(sequential.pcsSet(), parallel.pcsSet(), "PCSs of " + example);
+      assertEquals(
+          sequential.contentTupleSet(), parallel.contentTupleSet(), "content tuples of " + example);
+      for (final var pcs : sequential.pcsSet()) {
+        assertEquals(
+            sequential.pcsSet().hardInconsistencyOf(pcs),
+            parallel.pcsSet().hardInconsistencyOf(pcs),
+            "hard inconsistency of " + pcs + " in " + example);
+      }
+      for (final var contentTuple : sequential.contentTupleSet()) {
+        assertEquals(
+            sequential.contentTupleSet().hardInconsistencyOf(contentTuple),
+            parallel.contentTupleSet().hardInconsistencyOf(contentTuple),
+            "hard inconsistency of " + contentTuple + " in " + example);
+      }
+      assertEquals(sequential.hasConflicts(), parallel.hasConflicts(), "conflicts in " + example);
+    }
+  }
+
+  // region Helpers.
+
+  /**
+   * Build the change sets of an example merge the way the merge pipeline does.
+   *
+   * @param example the directory of the example
+   * @return the base, left, and right change sets
+   * @throws IOException if the example could not be read
+   */
+  private static ChangeSet[] changeSetsOf(Path example) throws IOException {
+    final var baseTree = parse(example.resolve("file_base.java"));
+    final var leftTree = parse(example.resolve("file_left.java"));
+    final var rightTree = parse(example.resolve("file_right.java"));
+
+    final var matchers = Matchers.getInstance();
+    final var baseToLeft = matchers.getMatcher().match(baseTree, leftTree);
+    final var baseToRight = matchers.getMatcher().match(baseTree, rightTree);
+    final var leftToRight =
+        InsertionMatching.match(
+            leftTree, rightTree, baseToLeft, baseToRight, matchers.getMatcher());
+    UnchangedSubtrees.mark(baseTree, leftTree, rightTree, baseToLeft, baseToRight);
+
+    final var nodeToClassRepresentatives =
+        ClassRepresentatives.from(
+            baseTree, leftTree, rightTree, baseToLeft, baseToRight, leftToRight);
+    final var nodeIds = new NodeIds();
+    final var astRootToVirtualRoot = new LinkedHashMap<Tree, Tree>();
+    final var nodeToChildListVirtualNodes = new LinkedHashMap<Tree, ChildListVirtualNodes>();
+    final var changeSets = new ChangeSet[3];
+    final var trees = new Tree[] {baseTree, leftTree, rightTree};
+    for (var i = 0; i < trees.length; i++) {
+      changeSets[i] =
+          ChangeSet.from(
+              trees[i],
+              nodeToClassRepresentatives,
+              nodeIds,
+              astRootToVirtualRoot,
+              nodeToChildListVirtualNodes);
+    }
+    return changeSets;
+  }
+
+  /**
+   * Parse a Java source file.
+   *
+   * @param file the file
+   * @return the root of its tree
+   * @throws IOException if the file could not be read
+   */
+  private static Tree parse(Path file) throws IOException {
+    final var tree =
+        new JavaParserGenerator().generateFrom().string(Files.readString(file)).getRoot();
+    tree.getMetrics();
+    return tree;
+  }
+  // endregion
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link NodeIndex}, dense and sparse, on and off the heap.
+ *
+ * @author Kenneth Yang
+ */
+class NodeIndexTest {
+  // region Constants.
+  private static final List<Columns> ALL_COLUMNS =
+      List.of(HeapColumns.INSTANCE, OffHeapColumns.INSTANCE);
+
+  // endregion
+
+  @Test
+  void valuesAreListedMostRecentFirst() {
+    for (final var columns : ALL_COLUMNS) {
+      for (final var sparse : new boolean[] {false, true}) {
+        final var index = new NodeIndex(2, sparse, columns);
+        index.add(3, 10);
+        index.add(5, 20);
+        index.add(3, 30);
+
+        assertEquals(List.of(30, 10), valuesOf(index, 3));
+        assertEquals(List.of(20), valuesOf(index, 5));
+        assertEquals(NodeIndex.END, index.head(4));
+        assertEquals(NodeIndex.END, index.head(1_000), "node past the end of the heads");
+      }
+    }
+  }
+
+  @Test
+  void largeNodeIdsAreIndexed() {
+    for (final var columns : ALL_COLUMNS) {
+      for (final var sparse : new boolean[] {false, true}) {
+        // Dense heads grow to the largest node ID, so only sparse indexes go up to the maximum.
+        final var nodes =
+            sparse
+                ? new int[] {0, 1 << 20, NodeIds.MAX_ID - 1, NodeIds.MAX_ID}
+                : new int[] {0, 16, 5_000, 1 << 20};
+        final var index = new NodeIndex(0, sparse, columns);
+        for (var i = 0; i < nodes.length; i++) index.add(nodes[i], i);
+
+        for (var i = 0; i < nodes.length; i++) assertEquals(List.of(i), valuesOf(index, nodes[i]));
+      }
+    }
+  }
+
+  @Test
+  void randomAddsMatchModel() {
+    final var random = new Random(0x5eed);
+    for (final var columns : ALL_COLUMNS) {
+      for (final var sparse : new boolean[] {false, true}) {
+        final var index = new NodeIndex(random.nextInt(32), sparse, columns);
+        final var model = new HashMap<Integer, List<Integer>>();
+
+        // Enough nodes and values to grow the heads and the lists several times, revisiting known
+        // nodes half the time so lists grow in the sparse table too.
+        final var nodes = new ArrayList<Integer>();
+        for (var value = 0; value < 20_000; value++) {
+          final int node;
+          if (!nodes.isEmpty() && random.nextBoolean()) {
+            node = nodes.get(random.nextInt(nodes.size()));
+          } else {
+            node = random.nextInt(sparse ? NodeIds.MAX_ID : 5_000);
+            nodes.add(node);
+          }
+          index.add(node, value);
+          model.computeIfAbsent(node, key -> new ArrayList<>()).add(0, value);
+        }
+
+        for (final var entry : model.entrySet()) {
+          assertEquals(entry.getValue(), valuesOf(index, entry.getKey()), "node " + entry.getKey());
+        }
+      }
+    }
+  }
+
+  // region Helpers.
+
+  /**
+   * Read a node's list.
+   *
+   * @param index the index
+   * @param node the node ID
+   * @return the values of the node, most recent first
+   */
+  private static List<Integer> valuesOf(NodeIndex index, int node) {
+    final var values = new ArrayList<Integer>();
+    for (var link = index.head(node); link != NodeIndex.END; link = index.next(link)) {
+      values.add(index.value(link));
+    }
+    return values;
+  }
+  // endregion
+}
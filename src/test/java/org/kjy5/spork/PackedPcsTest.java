@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024 Kenneth Yang (kjy5@uw.edu)
+ */
+package org.kjy5.spork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link PackedPcs}.
+ *
+ * @author Kenneth Yang
+ */
+class PackedPcsTest {
+  @Test
+  void inlineTriplesRoundTrip() {
+    final var packing = new PackedPcs();
+    final var max = PackedPcs.MAX_INLINE_NODE_ID;
+
+    final var triples = List.of(List.of(0, 0, 0), List.of(1, 2, 3), List.of(max, max, max));
+    for (final var triple : triples) {
+      final var pcs = packing.pack(triple.get(0), triple.get(1), triple.get(2));
+      assertEquals(0, pcs & PackedPcs.WIDE, "inline");
+      assertTrue(pcs >= 0);
+      assertUnpacksTo(packing, pcs, triple);
+      assertEquals(pcs, packing.find(triple.get(0), triple.get(1), triple.get(2)));
+    }
+    assertEquals(0, packing.wideCount());
+  }
+
+  @Test
+  void wideTriplesRoundTrip() {
+    final var packing = new PackedPcs();
+    final var max = NodeIds.MAX_ID;
+    final var inlineMax = PackedPcs.MAX_INLINE_NODE_ID;
+
+    // Any node ID past the inline maximum makes the whole triple wide.
+    final var triples =
+        List.of(
+            List.of(inlineMax + 1, 0, 0),
+            List.of(0, inlineMax + 1, 0),
+            List.of(0, 0, inlineMax + 1),
+            List.of(max, max, max));
+    for (final var triple : triples) {
+      assertEquals(
+          PackedPcs.NO_PCS,
+          packing.find(triple.get(0), triple.get(1), triple.get(2)),
+          "never packed");
+
+      final var pcs = packing.pack(triple.get(0), triple.get(1), triple.get(2));
+      assertNotEquals(0, pcs & PackedPcs.WIDE, "wide");
+      assertTrue(pcs >= 0);
+      assertUnpacksTo(packing, pcs, triple);
+
+      // Equal triples pack to the same value without interning them again.
+      assertEquals(pcs, packing.pack(triple.get(0), triple.get(1), triple.get(2)));
+      assertEquals(pcs, packing.find(triple.get(0), triple.get(1), triple.get(2)));
+    }
+    assertEquals(triples.size(), packing.wideCount());
+  }
+
+  @Test
+  void randomTriplesRoundTrip() {
+    final var random = new Random(0x5eed);
+    final var packing = new PackedPcs();
+    final var tripleOf = new HashMap<Long, List<Integer>>();
+    final var pcsOf = new HashMap<List<Integer>, Long>();
+
+    // Enough wide triples to grow the interning table several times, and some repeats.
+    for (var i = 0; i < 100_000; i++) {
+      final var bound = random.nextBoolean() ? PackedPcs.MAX_INLINE_NODE_ID : NodeIds.MAX_ID;
+      final var triple =
+          List.of(random.nextInt(bound + 1), random.nextInt(bound + 1), random.nextInt(64));
+      final var pcs = packing.pack(triple.get(0), triple.get(1), triple.get(2));
+
+      // Equal triples pack to equal values, and distinct triples to distinct values.
+      assertEquals(pcs, (long) pcsOf.computeIfAbsent(triple, key -> pcs));
+      assertEquals(triple, tripleOf.computeIfAbsent(pcs, key -> triple));
+    }
+
+    for (final var entry : tripleOf.entrySet()) {
+      assertUnpacksTo(packing, entry.getKey(), entry.getValue());
+    }
+  }
+
+  // region Helpers.
+
+  /**
+   * Check the node IDs of a packed PCS.
+   *
+   * @param packing the packing the PCS came from
+   * @param pcs the packed PCS
+   * @param triple the expected parent, child, and successor IDs
+   */
+  private static void assertUnpacksTo(PackedPcs packing, long pcs, List<Integer> triple) {
+    assertEquals(
+        triple,
+        List.of(packing.parent(pcs), packing.child(pcs), packing.successor(pcs)),
+        "node IDs of " + pcs);
+  }
+  // endregion
+}